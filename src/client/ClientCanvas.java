@@ -1,24 +1,39 @@
 package client;
 
-import java.awt.Color;
+import java.awt.BasicStroke;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 import model.DrawingLayer;
+import model.DrawingOperation;
 import model.DrawingOperationProtocol;
+import model.DrawingRasterizer;
 
 
 /**
@@ -27,9 +42,26 @@ import model.DrawingOperationProtocol;
  * user to erase as well. The canvas communicates with a WhiteboardServer
  * to allow collaboration on a whiteboard among multiple users
  * 
+ * Drawings received from the server are drawn off the EDT, by a render thread of the canvas's own,
+ * onto a back buffer; up to a frame's worth of them at a time is then published by copying the part
+ * of the back buffer they changed onto the drawingBuffer that is painted, so the user can keep 
+ * drawing while a large board is being drawn. The render thread runs while the canvas is 
+ * displayable: it is started by addNotify and shut down by removeNotify, and messages received 
+ * in between wait for it.
+ * 
+ * Each pending drawing is tagged with the board generation it was made in, the number of board
+ * changes received before it; once the render thread publishes a board change, only the pending
+ * drawings made before it are dropped.
+ * 
  * Concurrency Argument:
- * The fields drawingCounter, drawingBuffer, recentDrawings, and X&Y variables are only ever
- * 		accessed/modified after synchronizing on the class, making them thread safe
+ * The fields drawingCounter, drawingBuffer, recentDrawings, drawingGenerations, boardGeneration, 
+ * 		renderer, dirtyRegion, and X&Y variables are only ever accessed/modified after synchronizing 
+ * 		on the class, making them thread safe
+ * The fields backBuffer and renderedGeneration are confined to the render thread, which holds the 
+ * 		lock only while it publishes, so drawing received drawings never blocks the EDT. Received messages reach the
+ * 		render thread through a lock-free queue; renderScheduled is cleared before the render 
+ * 		thread takes any of them, so a message added after the last one it took always schedules
+ * 		another render
  * The order of events of a DrawingLayer's creation occur within the DrawingController, which
  * 		will always have a predictable progression of events. Since there is only one mouse per client, 
  * 		none of the DrawingController events will ever be called from multiple threads, 
@@ -50,8 +82,25 @@ public class ClientCanvas extends JPanel{
 		static final AtomicLong drawingCounter = new AtomicLong(0);
 		
 		// Image where the user's drawing is stored
-		// this Image is only updated by messages received from the server
-	    private Image drawingBuffer;
+		// this Image is only updated by messages received from the server, 
+		//		which are drawn on backBuffer and then copied here
+	    private final BufferedImage drawingBuffer;
+	    private final BufferedImage backBuffer;
+	    
+	    // messages received from the server, waiting for the render thread to draw them
+	    //		onto backBuffer, in order
+	    private final Queue<String> receivedMessages = new ConcurrentLinkedQueue<String>();
+	    private final AtomicBoolean renderScheduled = new AtomicBoolean(false);
+	    // null while the canvas isn't displayable
+	    private ExecutorService renderer;
+	    // the number of board changes the render thread has drawn
+	    private long renderedGeneration = 0;
+	    private final Runnable renderTask = new Runnable() {
+	    	@Override
+	    	public void run() {
+	    		render();
+	    	}
+	    };
 	    
 	    // this is a list of recent commands done by the user
 	    // this list will be iterated through every time a drawing command occurs
@@ -59,22 +108,85 @@ public class ClientCanvas extends JPanel{
 	    //		that the drawing command has been processed
 	    private List<DrawingLayer> recentDrawings;
 	    
+	    // the number of board changes received, and the number received before each
+	    //		drawing in recentDrawings was made
+	    private long boardGeneration = 0;
+	    private final Map<DrawingLayer, Long> drawingGenerations = new IdentityHashMap<DrawingLayer, Long>();
+	    
+	    // the part of the canvas that has changed since it was last painted, or null if none has;
+	    // it is painted at most once every FRAME_MILLIS by frameTimer, however often it changes
+	    private Rectangle dirtyRegion;
+	    private final Timer frameTimer;
+	    
 		private final ClientEasel easel;
     	private int X1,X2,Y1,Y2;
     	
-    	public static final int DEFAULT_WIDTH = 800;
-    	public static final int DEFAULT_HEIGHT = 600;
+    	// about one refresh of a 60 Hz display
+    	static final int FRAME_MILLIS = 16;
+    	
+    	public static final int DEFAULT_WIDTH = DrawingOperationProtocol.CANVAS_WIDTH;
+    	public static final int DEFAULT_HEIGHT = DrawingOperationProtocol.CANVAS_HEIGHT;
     	
     	public ClientCanvas(int width, int height, ClientEasel easel) {
     		this.easel = easel;
     		recentDrawings = Collections.synchronizedList(new ArrayList<DrawingLayer>());
             this.setPreferredSize(new Dimension(width, height));
             
+            frameTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+            	@Override
+            	public void actionPerformed(ActionEvent e) {
+            		paintDirtyRegion();
+            	}
+            });
+            frameTimer.setRepeats(false);
+            
+            // the buffers are plain images, so unlike images from createImage they 
+            // can be made before the canvas is added to a window
+            drawingBuffer = makeDrawingBuffer(width, height);
+            backBuffer = makeDrawingBuffer(width, height);
+            
             addDrawingController();
-            // note: we can't call makeDrawingBuffer here, because it only
-            // works *after* this canvas has been added to a window.  Have to
-            // wait until paintComponent() is first called.
         }
+    	
+    	/**
+    	 * Starts the render thread, and has it draw any messages received before now
+    	 * 
+    	 * @see javax.swing.JComponent#addNotify()
+    	 */
+    	@Override
+    	public void addNotify() {
+    		super.addNotify();
+    		synchronized (this) {
+    			if (renderer == null){
+    				renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    					@Override
+    					public Thread newThread(Runnable r) {
+    						Thread thread = new Thread(r, "whiteboard-render");
+    						thread.setDaemon(true);
+    						return thread;
+    					}
+    				});
+    			}
+    			scheduleRender();
+    		}
+    	}
+    	
+    	/**
+    	 * Shuts the render thread down, once it has finished what it was doing, when the 
+    	 * canvas is removed from its window or the window is disposed
+    	 * 
+    	 * @see javax.swing.JComponent#removeNotify()
+    	 */
+    	@Override
+    	public void removeNotify() {
+    		synchronized (this) {
+    			if (renderer != null){
+    				renderer.shutdown();
+    				renderer = null;
+    			}
+    		}
+    		super.removeNotify();
+    	}
     
 	    /**
 	     * @see javax.swing.JComponent#paintComponent(java.awt.Graphics)
@@ -82,19 +194,19 @@ public class ClientCanvas extends JPanel{
 	    @Override
 	    public synchronized void paintComponent(Graphics g) {
 	    	
-	        // If this is the first time paintComponent() is being called,
-	        // make our drawing buffer
-	        if (drawingBuffer == null) {
-	            makeDrawingBuffer();
-	        }
+	        // only the dirty part of the canvas needs painting; g is clipped to it
+	        Rectangle clip = g.getClipBounds();
 	        
 	        // draw the buffer which has been updated by the server
 	        g.drawImage(drawingBuffer, 0, 0, null);
 	        
 	        // iterate through and draw all of the client drawings 
-	        // that haven't been processed by the server yet
+	        // that haven't been processed by the server yet, from their points,
+	        // skipping those outside the dirty part
 	        for (DrawingLayer drawing: recentDrawings){
-	        	g.drawImage(drawing.getImage(), 0, 0, null);
+	        	if (clip == null || clip.intersects(drawing.getBounds(getWidth(), getHeight()))){
+	        		DrawingRasterizer.draw(drawing.toOperation(), (Graphics2D) g, getWidth(), getHeight());
+	        	}
 	        }
 	        
 	        // if we are in line/shape mode, draw on top of everything else 
@@ -110,25 +222,52 @@ public class ClientCanvas extends JPanel{
 	    }
 	    
 	    /*
-	     * Make the drawing buffer and fill it with white
+	     * Mark the whole canvas as needing to be painted in the next frame
 	     */
-	    private synchronized void makeDrawingBuffer() {
-	        drawingBuffer = createImage(this.getWidth(), this.getHeight());
-	        fillWithWhite((Graphics2D) drawingBuffer.getGraphics());
+	    private synchronized void markDirty() {
+	    	markDirty(new Rectangle(0, 0, getWidth(), getHeight()));
 	    }
 	    
 	    /*
-	     * Make the graphics entirely white.
-	     * 
+	     * Mark part of the canvas as needing to be painted in the next frame, and
+	     * schedule the frame if it isn't already
 	     */
-	    private synchronized void fillWithWhite(Graphics2D g) {
-	    	
-	        g.setColor(Color.WHITE);
-	        g.fillRect(0,  0,  getWidth(), getHeight());
-	        
-	        // IMPORTANT!  every time we draw on the internal drawing buffer, we
-	        // have to notify Swing to repaint this component on the screen.
-	        this.repaint();
+	    private synchronized void markDirty(Rectangle region) {
+	    	if (dirtyRegion == null){
+	    		dirtyRegion = new Rectangle(region);
+	    	}
+	    	else {
+	    		dirtyRegion.add(region);
+	    	}
+	    	if (!frameTimer.isRunning()){
+	    		frameTimer.start();
+	    	}
+	    }
+	    
+	    /*
+	     * Paint everything marked dirty since the last frame, as one repaint.
+	     * Called by frameTimer, on the event thread
+	     */
+	    private void paintDirtyRegion() {
+	    	Rectangle region;
+	    	synchronized (this) {
+	    		region = dirtyRegion;
+	    		dirtyRegion = null;
+	    	}
+	    	if (region != null){
+	    		repaint(region);
+	    	}
+	    }
+	    
+	    /*
+	     * Make a drawing buffer and fill it with white
+	     */
+	    private static BufferedImage makeDrawingBuffer(int width, int height) {
+	    	BufferedImage buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	    	Graphics2D g = buffer.createGraphics();
+	    	DrawingRasterizer.fillWithWhite(g, width, height);
+	    	g.dispose();
+	    	return buffer;
 	    }
 	    
 	    /*
@@ -136,7 +275,7 @@ public class ClientCanvas extends JPanel{
 	     */
 	    public synchronized void eraseAll() {
 	    	DrawingLayer currentDrawing = createNewDrawing(true);
-	    	fillWithWhite((Graphics2D) currentDrawing.getImage().getGraphics());
+	    	markDirty();
 	    	
 	    	sendDrawingMessage(currentDrawing.createMessage());
 	    };
@@ -154,10 +293,6 @@ public class ClientCanvas extends JPanel{
 		        g.setStroke(easel.getStroke());
 	    	}
 	        g.drawLine(x1, y1, x2, y2);
-	        
-	        // IMPORTANT!  every time we draw on the internal drawing buffer, we
-	        // have to notify Swing to repaint this component on the screen.
-	        this.repaint();
 	    }
 	    
 	    /*
@@ -168,14 +303,22 @@ public class ClientCanvas extends JPanel{
 	     * Uses information from the currently selected color and width in the GUI
 	     */
 	    private synchronized void drawTempSegment(int x1, int y1, int x2, int y2) {
+	    	// repaint where the segment was, and where it is now
+	    	repaintTempSegment();
 	        X1=x1;
 	        X2=x2;
 	        Y1=y1;
 	        Y2=y2;
-	        // IMPORTANT!  every time we draw on the internal drawing buffer, we
-	        // have to notify Swing to repaint this component on the screen.
-	        this.repaint();
-	        
+	        repaintTempSegment();
+	    }
+	    
+	    /*
+	     * Repaint the part of the canvas the temporary line/shape covers, if there is one
+	     */
+	    private synchronized void repaintTempSegment() {
+	    	if (X1 != Integer.MAX_VALUE){
+	    		markDirty(DrawingRasterizer.getBounds(X1, Y1, X2, Y2, ((BasicStroke) easel.getStroke()).getLineWidth()));
+	    	}
 	    }
 	    
 	    /*
@@ -192,81 +335,10 @@ public class ClientCanvas extends JPanel{
 		        g.setStroke(easel.getStroke());
 	    	}
 	        
-	        if (shapeType.equals(ClientEasel.SQUARE) || shapeType.equals(ClientEasel.CIRCLE)){
-	        	Line2D line = getSquareCoordinates(x1, y1, x2, y2);
-	        	x1 = (int) line.getX1();
-	        	x2 = (int) line.getX2();
-	        	y1 = (int) line.getY1();
-	        	y2 = (int) line.getY2();
-	        }
-	        
-	        int xOrigin = Math.min(x2, x1);
-	        int yOrigin = Math.min(y2, y1);
-	        int xLength = Math.abs(x2-x1);
-	        int yLength = Math.abs(y2-y1);
-	        
-	        if (shapeType.equals(ClientEasel.RECTANGLE)){
-	        	if (fillShape){
-	        		g.fillRect(xOrigin, yOrigin, xLength, yLength);
-	        	}
-	        	else {
-	        		g.drawRect(xOrigin, yOrigin, xLength, yLength); 
-	        	}
-	        }
-	        else if (shapeType.equals(ClientEasel.OVAL)){
-	        	if (fillShape){
-	        		g.fillOval(xOrigin, yOrigin, xLength, yLength);
-	        	}
-	        	else {
-	        		g.drawOval(xOrigin, yOrigin, xLength, yLength);
-	        	}
-	        }
-	        
-	        if (shapeType.equals(ClientEasel.SQUARE)){
-	        	if (fillShape){
-	        		g.fillRect(xOrigin, yOrigin, xLength, yLength);
-	        	}
-	        	else {
-	        		g.drawRect(xOrigin, yOrigin, xLength, yLength); 
-	        	}
-	        }
-	        
-	        else if (shapeType.equals(ClientEasel.CIRCLE)){
-	        	if (fillShape){
-	        		g.fillOval(xOrigin, yOrigin, xLength, yLength);
-	        	}
-	        	else {
-	        		g.drawOval(xOrigin, yOrigin, xLength, yLength);
-	        	}
-	        }
-	        
-	        // IMPORTANT!  every time we draw on the internal drawing buffer, we
-	        // have to notify Swing to repaint this component on the screen.
-	        
-	        this.repaint();
-	        
+	        DrawingRasterizer.drawShape(x1, y1, x2, y2, g, shapeType, fillShape);
 	    }
 
 	    
-	    /*
-	     * Erases a line between two points (x1, y1) and (x2, y2), specified in
-	     * pixels relative to the upper-left corner of the drawing buffer.
-	     * 
-	     * Uses information from the selected width
-	     */
-	    private void drawEraseSegment(int x1, int y1, int x2, int y2, Graphics2D g, boolean overrideGraphics) {
-	        
-	        g.setColor(Color.white);
-	    	if (!overrideGraphics) {
-		        g.setStroke(easel.getStroke());
-	    	}
-	        g.drawLine(x1, y1, x2, y2);
-	        
-	        // IMPORTANT!  every time we draw on the internal drawing buffer, we
-	        // have to notify Swing to repaint this component on the screen.
-	        this.repaint();
-	    }
-	    
 	    /**
 	     * Adds a new DrawingLayer to the list of currentDrawings, and
 	     * returns it
@@ -277,18 +349,22 @@ public class ClientCanvas extends JPanel{
 	     */
 	    private synchronized DrawingLayer createNewDrawing() {
 	    	long drawingID = drawingCounter.getAndIncrement();
-	    	recentDrawings.add(new DrawingLayer(easel.getUsername()+drawingID, this.getWidth(), 
-	    			this.getHeight(), easel.getColor(), easel.getStroke(), easel.getCurrentTool(), 
-	    			easel.getSelectedShape(), easel.isShapeFilled()));
-            
-	    	return recentDrawings.get(recentDrawings.size()-1);
+	    	return addDrawingLayer(new DrawingLayer(easel.getUsername()+drawingID, easel.getColor(), 
+	    			easel.getStroke(), easel.getCurrentTool(), easel.getSelectedShape(), easel.isShapeFilled()));
 	    }
 	    private synchronized DrawingLayer createNewDrawing(boolean eraseAll){
 	    	long drawingID = drawingCounter.getAndIncrement();
-	    	recentDrawings.add(new DrawingLayer(easel.getUsername()+drawingID, this.getWidth(), 
-	    			this.getHeight(), easel.getColor(), easel.getStroke(), ClientEasel.ERASE_ALL_BUTTON, 
-	    			easel.getSelectedShape(), easel.isShapeFilled()));
-	    	return recentDrawings.get(recentDrawings.size()-1);
+	    	return addDrawingLayer(new DrawingLayer(easel.getUsername()+drawingID, easel.getColor(), 
+	    			easel.getStroke(), ClientEasel.ERASE_ALL_BUTTON, easel.getSelectedShape(), easel.isShapeFilled()));
+	    }
+	    
+	    /*
+	     * Adds drawing to recentDrawings, tagged with the current board generation
+	     */
+	    private synchronized DrawingLayer addDrawingLayer(DrawingLayer drawing){
+	    	recentDrawings.add(drawing);
+	    	drawingGenerations.put(drawing, boardGeneration);
+	    	return drawing;
 	    }
 	    
 	    /**
@@ -303,56 +379,131 @@ public class ClientCanvas extends JPanel{
 	    }
 	    
 	    /**
-	     * Reads a new drawing message from the WhiteboardServer, draws it to the
-	     * drawingBuffer, and removes it from recentDrawings if it exists
+	     * Reads new drawing messages (or board snapshots) from the WhiteboardServer, 
+	     * draws them to the drawingBuffer, and removes them from recentDrawings if they exist.
+	     * The messages are drawn in bulk by the render thread, so this returns right away
 	     * 
 	     * @see DrawingOperationProtocol# for message formatting info
 	     * 
-	     * @param message
+	     * @param messages the messages, in the order they arrived
 	     */
-	    public synchronized void receiveDrawingMessage(String message){
-	    	if (message.startsWith(ClientGUI.BOARD_CHANGED)){
-	    		recentDrawings.clear();
-	    		fillWithWhite((Graphics2D) drawingBuffer.getGraphics());
+	    public void receiveDrawingMessages(List<String> messages){
+	    	for (String message : messages){
+	    		if (message.startsWith(ClientGUI.BOARD_CHANGED)){
+	    			// drawings made from now on are on the new board
+	    			synchronized (this) {
+	    				boardGeneration++;
+	    			}
+	    		}
 	    	}
-	    	else {
-		    	DrawingLayer drawing = DrawingOperationProtocol.readMessage(message);
-		    	drawToBuffer(drawing);
-		    	removeDrawingLayer(drawing.getDrawingID());
+	    	receivedMessages.addAll(messages);
+	    	scheduleRender();
+	    }
+	    
+	    /*
+	     * Has the render thread draw the received messages, unless it already will or the 
+	     * canvas isn't displayable
+	     */
+	    private synchronized void scheduleRender(){
+	    	if (renderer != null && !receivedMessages.isEmpty() && renderScheduled.compareAndSet(false, true)){
+	    		renderer.execute(renderTask);
+	    	}
+	    }
+	    
+	    /**
+	     * Draws the received messages onto the backBuffer for up to a frame, then publishes 
+	     * them, leaving any still waiting for the next frame. Called on the render thread
+	     */
+	    private void render(){
+	    	// cleared before taking any messages, so none can be left waiting unscheduled
+	    	renderScheduled.set(false);
+	    	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FRAME_MILLIS);
+	    	int width = backBuffer.getWidth();
+	    	int height = backBuffer.getHeight();
+	    	Rectangle region = null;
+	    	List<String> drawingIDs = new ArrayList<String>();
+	    	boolean boardChanged = false;
+	    	Graphics2D g = backBuffer.createGraphics();
+	    	try {
+	    		String message;
+	    		while (System.nanoTime() < deadline && (message = receivedMessages.poll()) != null){
+	    			if (message.startsWith(ClientGUI.BOARD_CHANGED)){
+	    				// every drawing pending from before now was on the old board
+	    				renderedGeneration++;
+	    				boardChanged = true;
+	    				drawingIDs.clear();
+	    				DrawingRasterizer.fillWithWhite(g, width, height);
+	    				region = new Rectangle(0, 0, width, height);
+	    			}
+	    			else if (message.startsWith(ClientGUI.BOARD_SNAPSHOT)){
+	    				// the board so far, in place of every drawing before it
+	    				DrawingRasterizer.fillWithWhite(g, width, height);
+	    				region = new Rectangle(0, 0, width, height);
+	    				try {
+	    					g.drawImage(DrawingOperationProtocol.readSnapshotMessage(message), 0, 0, null);
+	    				} catch (IllegalArgumentException e) {
+	    					System.err.println(e.getMessage());
+	    				}
+	    			}
+	    			else {
+	    				// the drawing has already been drawn, so it needs no image of its own
+	    				DrawingOperation drawing = DrawingOperationProtocol.readOperation(message);
+	    				try {
+	    					DrawingRasterizer.draw(drawing, g, width, height);
+	    				} catch (RuntimeException e) {
+	    					// a malformed drawing, which no one else can draw either
+	    					continue;
+	    				}
+	    				Rectangle bounds = DrawingRasterizer.getBounds(drawing, width, height);
+	    				if (region == null){
+	    					region = bounds;
+	    				}
+	    				else {
+	    					region.add(bounds);
+	    				}
+	    				drawingIDs.add(drawing.getDrawingID());
+	    			}
+	    		}
+	    	} finally {
+	    		g.dispose();
+	    	}
+	    	if (region != null){
+	    		publish(region, drawingIDs, boardChanged ? renderedGeneration : -1);
 	    	}
+	    	scheduleRender();
 	    }
 	    
 	    /**
-	     * Draws the DrawingLayer directly to the drawingBuffer,
+	     * Copies the region of the backBuffer the render thread has drawn on to the drawingBuffer, 
+	     * and removes the drawings now in it from recentDrawings, all at once, so that the user 
+	     * never sees a drawing missing from both. Called on the render thread
 	     * 
-	     * @param drawing the DrawingLayer to draw to the buffer
+	     * @param region the part of the backBuffer that changed
+	     * @param drawingIDs the drawings drawn
+	     * @param generation the board generation drawn, if the board changed, which drops every 
+	     * 		pending drawing made before it; otherwise -1
 	     */
-	    private synchronized void drawToBuffer(DrawingLayer drawing){
-	    	ArrayList<Point> pointList = drawing.getPointList();
-	    	Graphics2D g = (Graphics2D) drawingBuffer.getGraphics();
-	    	
-	    	g.setStroke(drawing.getStroke());
-	    	g.setColor(drawing.getColor());
-	    	
-	    	if (drawing.getDrawingType().equals(ClientEasel.PENCIL_BUTTON) || drawing.getDrawingType().equals(ClientEasel.LINE_BUTTON)){
-				for (int i=0; i<pointList.size()-1; i++){
-					drawPencilSegment(pointList.get(i).x, pointList.get(i).y
-							,pointList.get(i+1).x, pointList.get(i+1).y, g, true);
-				}
-			}
-			else if (drawing.getDrawingType().equals(ClientEasel.ERASE_BUTTON)){
-				for (int i=0; i<pointList.size()-1; i++){
-					drawEraseSegment(pointList.get(i).x, pointList.get(i).y
-							,pointList.get(i+1).x, pointList.get(i+1).y, g, true);
-				}
-			}
-			else if (drawing.getDrawingType().equals(ClientEasel.SHAPE_BUTTON)){
-				drawShapeSegment(pointList.get(0).x, pointList.get(0).y ,pointList.get(1).x, 
-						pointList.get(1).y, g, true, drawing.getShapeType(), drawing.getShapeFilled());
-			}
-			else {
-				fillWithWhite(g);
-			}
+	    private synchronized void publish(Rectangle region, List<String> drawingIDs, long generation){
+	    	Iterator<DrawingLayer> pending = recentDrawings.iterator();
+	    	while (generation >= 0 && pending.hasNext()){
+	    		DrawingLayer drawing = pending.next();
+	    		if (drawingGenerations.get(drawing) < generation){
+	    			pending.remove();
+	    			drawingGenerations.remove(drawing);
+	    		}
+	    	}
+	    	Graphics2D g = drawingBuffer.createGraphics();
+	    	g.setClip(region);
+	    	g.drawImage(backBuffer, 0, 0, null);
+	    	g.dispose();
+	    	for (String drawingID : drawingIDs){
+	    		removeDrawingLayer(drawingID);
+	    	}
+	        
+	        // IMPORTANT!  every time we draw on the internal drawing buffer, we
+	        // have to notify Swing to repaint this component on the screen, 
+	        // but only where the drawings are
+	    	markDirty(region);
 	    }
 	    
 	    /**
@@ -368,7 +519,10 @@ public class ClientCanvas extends JPanel{
 	    		}
 	    	}
 	    	if (drawingIndex != -1){
-	    		recentDrawings.remove(drawingIndex);
+	    		DrawingLayer drawing = recentDrawings.remove(drawingIndex);
+	    		drawingGenerations.remove(drawing);
+	    		// the drawing is no longer drawn on top of the buffer
+	    		markDirty(drawing.getBounds(getWidth(), getHeight()));
 	    	}
 	    }
 
@@ -385,51 +539,7 @@ public class ClientCanvas extends JPanel{
 	     * 			drawing a square-like object
 	     */
 	    public static Line2D getSquareCoordinates(int x1, int y1, int x2, int y2){
-	    	
-	    	int xOrigin = Math.min(x2, x1);
-	        int yOrigin = Math.min(y2, y1);
-	        int xLength = Math.abs(x2-x1);
-	        int yLength = Math.abs(y2-y1);
-
-	        // make changes to the points to force equal sides
-	        if (x2>=x1&&y2>=y1){// 4th quadrant
-	        	if (xLength<=yLength){
-	        		yLength = xLength;
-	        	}
-	        	else{
-	        		xLength = yLength;
-	        	}
-	        }
-	        else if (x2<x1&&y2>=y1){// 3rd quadrant
-	        	if (xLength<=yLength){
-	        		yLength = xLength;
-	        	}
-	        	else{
-	        		xOrigin = x1-yLength;
-	        		xLength = yLength;
-	        	}
-	        }
-	        else if (x2<x1&&y2<y1){// 2nd quadrant
-	        	if (xLength<=yLength){
-	        		yOrigin = y1-xLength;
-	        		yLength = xLength;
-	        	}
-	        	else{
-	        		xOrigin = x1-yLength;
-	        		xLength = yLength;
-	        	}
-	        }
-	        else if (x2>=x1&&y2<y1){// 1st quadrant
-	        	if (xLength<=yLength){
-	        		yOrigin = y1-xLength;
-	        		yLength = xLength;
-	        	}
-	        	else{
-	        		xLength = yLength;
-	        	}
-	        }
-	    	
-	    	return new Line2D.Float(new Point(xOrigin, yOrigin), new Point(xOrigin+xLength, yOrigin+yLength));
+	    	return DrawingRasterizer.getSquareCoordinates(x1, y1, x2, y2);
 	    }
 
 	    
@@ -470,22 +580,16 @@ public class ClientCanvas extends JPanel{
 	            int x = Math.max(Math.min(e.getX(),getWidth()),0);
 	            int y = Math.max(Math.min(e.getY(),getHeight()),0);
 	            
-	            // Get the current drawing layer
-	            Graphics2D currentDrawingGraphics = (Graphics2D) currentDrawing.getImage().getGraphics();
-	            
 	            // if we are in pencil/erase, we want to keep a running list of points, so
 	            // continue adding to the drawings list of points
-	            if (ClientEasel.PENCIL_BUTTON.equals(currentDrawing.getDrawingType())){
-		            drawPencilSegment(lastX, lastY, x, y, currentDrawingGraphics, false);
-		            lastX = x;
-		            lastY = y;
+	            if (ClientEasel.PENCIL_BUTTON.equals(currentDrawing.getDrawingType()) ||
+	            		ClientEasel.ERASE_BUTTON.equals(currentDrawing.getDrawingType())){
 		            currentDrawing.addPoint(x, y);
-	            }
-	            else if (ClientEasel.ERASE_BUTTON.equals(currentDrawing.getDrawingType())){
-	            	drawEraseSegment(lastX, lastY, x, y, currentDrawingGraphics, false);
+		            // only the new segment needs painting
+		            markDirty(DrawingRasterizer.getBounds(lastX, lastY, x, y, 
+		            		((BasicStroke) currentDrawing.getStroke()).getLineWidth()));
 		            lastX = x;
 		            lastY = y;
-		            currentDrawing.addPoint(x, y);
 	            }
 	            else if (ClientEasel.LINE_BUTTON.equals(currentDrawing.getDrawingType())){
 	            	drawTempSegment(lastX, lastY, x, y);
@@ -500,26 +604,14 @@ public class ClientCanvas extends JPanel{
 	        	int x = Math.max(Math.min(e.getX(),getWidth()),0);
 	            int y = Math.max(Math.min(e.getY(),getHeight()),0);
 	            
-	            // Get the current drawing layer
-	            Graphics2D currentDrawingGraphics = (Graphics2D) currentDrawing.getImage().getGraphics();
-	     	            
-	            if (ClientEasel.PENCIL_BUTTON.equals(currentDrawing.getDrawingType())){
-		            drawPencilSegment(lastX, lastY, lastX, lastY, currentDrawingGraphics, false);
-	            }
-	            else if (ClientEasel.ERASE_BUTTON.equals(currentDrawing.getDrawingType())){
-	            	drawEraseSegment(lastX, lastY, lastX, lastY, currentDrawingGraphics, false);
-	            }
-	            else if (ClientEasel.LINE_BUTTON.equals(currentDrawing.getDrawingType())){
-	            	drawPencilSegment(lastX, lastY, x, y, currentDrawingGraphics, false);
-	            }
-	            else if (ClientEasel.SHAPE_BUTTON.equals(currentDrawing.getDrawingType())){
-	            	drawShapeSegment(X1, Y1, X2, Y2, currentDrawingGraphics, false, 
-		        			easel.getSelectedShape(), easel.isShapeFilled());
-	            }
+	            // the drawing is drawn from its points until the server processes it,
+	            // so finishing it is just adding its last point
 	            currentDrawing.addPoint(x, y);
+	            markDirty(currentDrawing.getBounds(getWidth(), getHeight()));
 	            
 	            sendDrawingMessage(currentDrawing.createMessage());
 	            
+	            repaintTempSegment();
 	            X1=X2=Y1=Y2=Integer.MAX_VALUE;// set these to be arbitrarily off of the drawing screen once weve finalized the drawing
 	        }
 	
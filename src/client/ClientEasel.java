@@ -8,6 +8,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.Collections;
+import java.util.List;
 
 import javax.swing.GroupLayout;
 import javax.swing.JButton;
@@ -317,47 +319,33 @@ public class ClientEasel extends JPanel{
     }
     
     /**
-     * Receives a new drawing message from the WhiteboardServer
+     * Receives new drawing messages from the WhiteboardServer, on the EDT
      * 
      * @see DrawingOperationProtocol# for message formatting info
      * 
-     * @param message
+     * @param messages the messages, in the order they arrived
      */
-    public synchronized void receiveDrawingMessage(String message){
-    	final String drawingMessage = message;
-    	SwingUtilities.invokeLater(new Runnable() {
-    		@Override
-			public void run() {
-    			canvas.receiveDrawingMessage(drawingMessage);
-    		}
-    	});
+    public synchronized void receiveDrawingMessages(List<String> messages){
+    	canvas.receiveDrawingMessages(messages);
     }
     
     /**
-     * Receives a new server message from the WhiteboardServer
+     * Receives a new server message from the WhiteboardServer, on the EDT
      * 
      * @see ClientInfoPanel# for message formatting info
      * 
      * @param message
      */
     public synchronized void receiveServerMessage(String message){
-    	
-    	final String drawingMessage = message;
-    	SwingUtilities.invokeLater(new Runnable() {
-    		@Override
-			public void run() {
-    			// if we changed boards, tell the canvas
-    			if (drawingMessage.startsWith(ClientGUI.BOARD_CHANGED)){
-    				canvas.receiveDrawingMessage(drawingMessage);
-    			}
-    			// otherwise we received a username change
-    			else{
-    				String[] args = drawingMessage.split(" ");
-    				username = args[args.length-1];
-    			}
-    		}
-    	});
-    		
+    	// if we changed boards, tell the canvas
+    	if (message.startsWith(ClientGUI.BOARD_CHANGED)){
+    		canvas.receiveDrawingMessages(Collections.singletonList(message));
+    	}
+    	// otherwise we received a username change
+    	else{
+    		String[] args = message.split(" ");
+    		username = args[args.length-1];
+    	}
     }
     
 }
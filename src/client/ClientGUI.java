@@ -5,11 +5,17 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import javax.swing.Box;
 import javax.swing.GroupLayout;
@@ -23,6 +29,7 @@ import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 
 import model.DrawingOperationProtocol;
+import model.WireProtocol;
 
 /**
  * A GUI to support drawing by multiple users on a shared whiteboard. This holds 
@@ -33,9 +40,13 @@ import model.DrawingOperationProtocol;
  * Concurrency Argument:
  * The only method for the ClientGUI to run into concurrency issues is due to the fact that
  * 		it spawns a separate thread to listen to messages from the WhiteboardServer. This
- * 		thread is made safe because ClientGUI never actually handles the messages, they are 
- * 		passed to the Easel/InfoPanel, who handle the messages through the EDT. To avoid issues
- * 		while sending messages, sending a message requires synchronizing on the GUI itself.
+ * 		thread is made safe because it never actually handles the messages: it puts them in a
+ * 		MessageInbox, which delivers them in batches on the EDT, where they are passed to the
+ * 		Easel/InfoPanel. To avoid issues while sending messages, sending a message requires 
+ * 		synchronizing on the GUI itself.
+ *
+ * If the server offers the binary wire protocol (see WireProtocol), the ClientGUI switches
+ * to it: drawings then travel as packed binary frames, in both directions.
  * 
  * @author jlmart88
  *
@@ -44,9 +55,12 @@ public class ClientGUI extends JFrame {
 
 	private static final long serialVersionUID = 1L;
 	
-	private PrintWriter w;
-	private BufferedReader r;
+	private OutputStream w;
+	private InputStream r;
 	private Socket socket;
+
+	// whether messages are sent in binary frames; guarded by the GUI's lock
+	private boolean binaryOutput = false;
 	public static final String CURRENT_BOARDS = "currentBoards ";
 	public static final String USER_QUIT = "userQuit ";
 	public static final String USER_JOINED = "userJoined "; 
@@ -54,11 +68,21 @@ public class ClientGUI extends JFrame {
 	public static final String USERNAME_CHANGED = "usernameChanged ";
 	public static final String BOARD_CHANGED = "boardChanged ";
 	public static final String NEW_BOARD = "newBoard ";
+	public static final String CURRENT_USERS = "currentUsers ";
+	public static final String BOARD_SNAPSHOT = DrawingOperationProtocol.SNAPSHOT_MESSAGE + " ";
 
 	public static final String[] SERVER_MESSAGE_LIST = { CURRENT_BOARDS, USER_QUIT, USER_JOINED, USERNAME,
-			USERNAME_CHANGED, BOARD_CHANGED, NEW_BOARD};
+			USERNAME_CHANGED, BOARD_CHANGED, NEW_BOARD, CURRENT_USERS};
 	private final ClientEasel easel;
 	private final ClientInfoPanel infoPanel;
+	
+	// messages read from the server, on their way to the EDT
+	private final MessageInbox inbox = new MessageInbox(new MessageInbox.Receiver() {
+		@Override
+		public void receive(List<String> messages) {
+			receiveServerMessages(messages);
+		}
+	});
 
 	public ClientGUI() throws IOException {
 		easel = new ClientEasel(ClientCanvas.DEFAULT_WIDTH,
@@ -92,32 +116,24 @@ public class ClientGUI extends JFrame {
 			@Override
 			public void run() {
 				try {
-					for (String line = r.readLine(); line != null; line = r
-							.readLine()) {
-
-						// log incoming messages
-						//System.out.println("Received: "+line);
-
-						for (String drawingMessage : DrawingOperationProtocol.DRAWING_MESSAGE_LIST) {
-							
-							
-							// if we have a drawing message, send it only to the
-							// easel
-							if (line.startsWith(drawingMessage)) {
-								easel.receiveDrawingMessage(line);
-							}
-							// otherwise, it may need to go to easel or
-							// infoPanel
+					// the server's messages are lines until it confirms the switch to binary frames
+					boolean binaryInput = false;
+					List<String> messages = new ArrayList<String>();
+					while (true) {
+						if (binaryInput){
+							if (!WireProtocol.readFrame(r, messages)) break;
 						}
-
-						if (line.startsWith(BOARD_CHANGED) || line.startsWith(USERNAME_CHANGED) 
-								|| line.startsWith(USERNAME)) {
-							easel.receiveServerMessage(line);
+						else {
+							String line = WireProtocol.readLine(r);
+							if (line == null) break;
+							messages.add(line);
 						}
-						for (String serverMessage : SERVER_MESSAGE_LIST)
-						if (line.startsWith(serverMessage)) {
-							infoPanel.receiveServerMessage(line);
+						// the switch to binary frames has to be noticed before the next read
+						if (messages.remove(WireProtocol.USE_PROTOCOL_MESSAGE + " " + WireProtocol.BINARY_V1)){
+							binaryInput = true;
 						}
+						inbox.add(messages);
+						messages.clear();
 					}
 				} catch (IOException e) {
 					e.printStackTrace();
@@ -132,6 +148,57 @@ public class ClientGUI extends JFrame {
 
 	}
 
+	/**
+	 * Pass messages from the server on to the easel and/or infoPanel, on the EDT.
+	 * Runs of drawing messages are passed to the easel together, so that they can be
+	 * drawn in bulk
+	 * 
+	 * @param messages the messages, in the order they arrived
+	 */
+	private void receiveServerMessages(List<String> messages){
+		List<String> drawings = new ArrayList<String>();
+		for (String line : messages){
+			// log incoming messages
+			//System.out.println("Received: "+line);
+			
+			// if we have a drawing message, send it only to the easel
+			if (line.startsWith(BOARD_SNAPSHOT) || WireProtocol.isDrawingMessage(line)) {
+				drawings.add(line);
+				continue;
+			}
+			// otherwise, it may need to go to easel or infoPanel,
+			// after the drawings before it
+			if (!drawings.isEmpty()) {
+				easel.receiveDrawingMessages(drawings);
+				drawings.clear();
+			}
+			receiveServerMessage(line);
+		}
+		if (!drawings.isEmpty()) {
+			easel.receiveDrawingMessages(drawings);
+		}
+	}
+
+	/**
+	 * Pass a message from the server that isn't a drawing on to the easel and/or infoPanel
+	 * 
+	 * @param line the message
+	 */
+	private void receiveServerMessage(String line){
+		if (line.startsWith(BOARD_CHANGED) || line.startsWith(USERNAME_CHANGED) 
+				|| line.startsWith(USERNAME)) {
+			easel.receiveServerMessage(line);
+		}
+		for (String serverMessage : SERVER_MESSAGE_LIST)
+		if (line.startsWith(serverMessage)) {
+			infoPanel.receiveServerMessage(line);
+		}
+		if (line.startsWith(WireProtocol.PROTOCOLS_MESSAGE + " ") 
+				&& Arrays.asList(line.split(" ")).contains(WireProtocol.BINARY_V1)) {
+			useBinaryProtocol();
+		}
+	}
+
 	/**
 	 * Prompts the user with a dialog for server info, then initializes a socket
 	 * connection with the server
@@ -197,9 +264,8 @@ public class ClientGUI extends JFrame {
 			        	try {
 							socket = new Socket(IPAddress.getText(),
 									Integer.parseInt(portNum.getText()));
-							w = new PrintWriter(socket.getOutputStream(), true);
-							r = new BufferedReader(new InputStreamReader(
-									socket.getInputStream()));
+							w = new BufferedOutputStream(socket.getOutputStream());
+							r = new BufferedInputStream(socket.getInputStream());
 						} catch (IOException | NumberFormatException e1) {
 							loginSuccessful = false;
 							e1.printStackTrace();
@@ -245,7 +311,27 @@ public class ClientGUI extends JFrame {
 	public synchronized void sendMessage(String output) {
 		// log Outgoing messages
 		//System.out.println("Sent: "+output);
-		w.println(output);
+		try {
+			if (binaryOutput){
+				w.write(WireProtocol.encodeFrames(Collections.singletonList(output)));
+			}
+			else {
+				w.write((output + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			w.flush();
+		} catch (IOException e) {
+			// the reader will notice the connection is gone
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Ask the server to switch to the binary wire protocol, and send everything after
+	 * that in binary frames
+	 */
+	private synchronized void useBinaryProtocol() {
+		sendMessage(WireProtocol.USE_PROTOCOL_MESSAGE + " " + WireProtocol.BINARY_V1);
+		binaryOutput = true;
 	}
 	
 	/**
@@ -184,17 +184,11 @@ public class ClientInfoPanel extends JPanel{
 	    
 	    /**
 	     * This method receives the non-drawing messages that the server sends to the
-	     * client and sends it to the parseUsers method.
+	     * client, on the EDT, and sends it to the parseMessage method.
 	     * @param message
 	     */
 	    protected synchronized void receiveServerMessage(String message){
-	    	final String serverMessage = message;
-	    	SwingUtilities.invokeLater(new Runnable() {
-	    		@Override
-				public void run() {
-	    			parseMessage(serverMessage);
-	    		}
-	    	});
+	    	parseMessage(message);
 	    }
 	    /**
 	     * This method takes a server message and parses it into different
@@ -203,42 +197,44 @@ public class ClientInfoPanel extends JPanel{
 	     * @param message
 	     */
 
-	    protected synchronized void parseMessage(String serverMessage){
-	    	final String message = serverMessage;
-        	SwingUtilities.invokeLater(new Runnable() {
-        		public void run() {
-        	    	if(message.startsWith(ClientGUI.USER_JOINED)){
-        	    		userListModel.addElement(message.substring(11));
-        	    	}
-        	    	if(message.startsWith(ClientGUI.USER_QUIT)){
-        	    		userListModel.removeElement(message.substring(9));
-        	    	}
-        	    	if(message.startsWith(ClientGUI.USERNAME)){
-        	    		userID.setText("Your username is: " + message.substring(9));
-        	    	}
-        	    	if(message.startsWith(ClientGUI.USERNAME_CHANGED)){
-        	    		String names[] = message.split(" ");
-        				userID.setText("Your username is: " + names[2]);
-        	    	}
-        	    	if(message.startsWith(ClientGUI.NEW_BOARD)) {
-            			String[] boards = message.split(" ");
-            			boardListModel.addElement(boards[1]);
-            		}
-        	    	if(message.startsWith(ClientGUI.BOARD_CHANGED)){
-            			String[] boards = message.split(" ");
-                		userListModel.clear();
-            			boardList.setSelectedValue(boards[2], true);
-        	    	}
-        	    	if(message.startsWith(ClientGUI.CURRENT_BOARDS)) {
-            			String[] boards = message.split(" ");
-            			for (int i = 1; i < boards.length; i++) {
-            			    if(!boardListModel.contains(boards[i]) && !boards[i].equals(" ") && !boards[i].equals("")){
-            			        boardListModel.addElement(boards[i]);
-            			    }
-            			}
-            		}
-        		}
-        	});
-
+	    protected synchronized void parseMessage(String message){
+	    	if(message.startsWith(ClientGUI.USER_JOINED)){
+	    		userListModel.addElement(message.substring(11));
+	    	}
+	    	if(message.startsWith(ClientGUI.USER_QUIT)){
+	    		userListModel.removeElement(message.substring(9));
+	    	}
+	    	if(message.startsWith(ClientGUI.USERNAME)){
+	    		userID.setText("Your username is: " + message.substring(9));
+	    	}
+	    	if(message.startsWith(ClientGUI.USERNAME_CHANGED)){
+	    		String names[] = message.split(" ");
+	    		userID.setText("Your username is: " + names[2]);
+	    	}
+	    	if(message.startsWith(ClientGUI.NEW_BOARD)) {
+	    		String[] boards = message.split(" ");
+	    		boardListModel.addElement(boards[1]);
+	    	}
+	    	if(message.startsWith(ClientGUI.BOARD_CHANGED)){
+	    		String[] boards = message.split(" ");
+	    		userListModel.clear();
+	    		boardList.setSelectedValue(boards[2], true);
+	    	}
+	    	if(message.startsWith(ClientGUI.CURRENT_USERS)){
+	    		// the whole roster of the board, sent after boardChanged
+	    		String[] users = message.split(" ");
+	    		userListModel.clear();
+	    		for (int i = 1; i < users.length; i++) {
+	    			userListModel.addElement(users[i]);
+	    		}
+	    	}
+	    	if(message.startsWith(ClientGUI.CURRENT_BOARDS)) {
+	    		String[] boards = message.split(" ");
+	    		for (int i = 1; i < boards.length; i++) {
+	    			if(!boardListModel.contains(boards[i]) && !boards[i].equals(" ") && !boards[i].equals("")){
+	    				boardListModel.addElement(boards[i]);
+	    			}
+	    		}
+	    	}
 	    }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Hands messages read from the server over to the EDT in batches. The thread reading
+ * from the server adds messages without ever waiting on the EDT, and at most one
+ * runnable is waiting on the EDT at a time, however many messages arrive. That runnable
+ * delivers the messages waiting, in order, in batches of up to BATCH_SIZE; once it has
+ * spent DELIVERY_BUDGET_NANOS it leaves the rest to a later runnable, so that the mouse
+ * and other events get through while a large board is replayed.
+ *
+ * Concurrency Argument:
+ * messages is a lock-free queue, so the reader and the EDT never block each other.
+ * deliveryScheduled is cleared by the EDT before it takes any messages, so a message added
+ * after the last one the EDT took always finds it cleared and schedules another delivery.
+ *
+ * @author jlmart88
+ *
+ */
+final class MessageInbox {
+
+	/**
+	 * Receives the messages an inbox delivers
+	 */
+	interface Receiver {
+		/**
+		 * Called on the EDT with the next messages from the server, in the order they arrived
+		 *
+		 * @param messages only valid until receive returns
+		 */
+		void receive(List<String> messages);
+	}
+
+	// how long one runnable keeps delivering batches before letting the EDT go, 
+	// about half a frame
+	static final long DELIVERY_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+	static final int BATCH_SIZE = 256;
+
+	private final Receiver receiver;
+	private final Queue<String> messages = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger backlog = new AtomicInteger(0);
+	private final AtomicBoolean deliveryScheduled = new AtomicBoolean(false);
+	private final AtomicInteger deliveries = new AtomicInteger(0);
+
+	private final Runnable delivery = new Runnable() {
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+
+	MessageInbox(Receiver receiver){
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Add messages to the inbox, and make sure they will be delivered. Never blocks.
+	 *
+	 * @param messages the messages, in the order they arrived
+	 */
+	void add(List<String> messages){
+		this.messages.addAll(messages);
+		backlog.addAndGet(messages.size());
+		if (deliveryScheduled.compareAndSet(false, true)){
+			SwingUtilities.invokeLater(delivery);
+		}
+	}
+
+	/**
+	 * @return the number of messages added but not yet delivered
+	 */
+	int getBacklog(){
+		return backlog.get();
+	}
+
+	/**
+	 * @return the number of runnables the inbox has run on the EDT so far
+	 */
+	int getDeliveries(){
+		return deliveries.get();
+	}
+
+	/*
+	 * Deliver the waiting messages, on the EDT
+	 */
+	private void deliver(){
+		deliveryScheduled.set(false);
+		deliveries.incrementAndGet();
+		long deadline = System.nanoTime() + DELIVERY_BUDGET_NANOS;
+		List<String> batch = new ArrayList<String>(BATCH_SIZE);
+		while (true){
+			String message;
+			while (batch.size() < BATCH_SIZE && (message = messages.poll()) != null){
+				batch.add(message);
+			}
+			if (batch.isEmpty()){
+				return;
+			}
+			backlog.addAndGet(-batch.size());
+			receiver.receive(batch);
+			batch.clear();
+			if (System.nanoTime() > deadline){
+				if (!messages.isEmpty() && deliveryScheduled.compareAndSet(false, true)){
+					SwingUtilities.invokeLater(delivery);
+				}
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+
+import model.DrawingOperationProtocol;
+import model.DrawingRasterizer;
+
+/**
+ * This class contains the testing strategy used to ensure that MessageInbox works correctly
+ *
+ * Things to test:
+ * - Every message is delivered on the EDT, once, in the order it was added
+ * - However many messages arrive, only a handful of runnables go through the EDT
+ *
+ * The stress test replays 100k drawings the way a reader thread would (in reads of 64
+ * messages), drawing each one onto an image on the EDT as a ClientCanvas does, so that
+ * deliveries run out of their budget, and then lets the EDT run until the inbox is empty.
+ * Every runnable the EDT runs delivers at least one batch, so if the inbox ever stopped
+ * scheduling deliveries with messages still waiting, the test fails instead of waiting
+ * for them.
+ *
+ * @author jlmart88
+ *
+ */
+public class MessageInboxTest {
+
+	private static final int OPS = 100000;
+	private static final int READ_SIZE = 64;
+
+	@Test
+	public void replayStressTest() throws InterruptedException, InvocationTargetException {
+		final BufferedImage buffer = new BufferedImage(DrawingOperationProtocol.CANVAS_WIDTH,
+				DrawingOperationProtocol.CANVAS_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicInteger outOfOrder = new AtomicInteger(0);
+		final AtomicInteger offEDT = new AtomicInteger(0);
+
+		MessageInbox inbox = new MessageInbox(new MessageInbox.Receiver() {
+			@Override
+			public void receive(List<String> messages) {
+				if (!SwingUtilities.isEventDispatchThread()){
+					offEDT.incrementAndGet();
+				}
+				Graphics2D g = buffer.createGraphics();
+				for (String message : messages){
+					if (!message.endsWith("[op" + received.get() + "]")){
+						outOfOrder.incrementAndGet();
+					}
+					DrawingRasterizer.draw(DrawingOperationProtocol.readOperation(message), g,
+							buffer.getWidth(), buffer.getHeight());
+					received.incrementAndGet();
+				}
+				g.dispose();
+			}
+		});
+
+		int reads = 0;
+		List<String> read = new ArrayList<String>(READ_SIZE);
+		for (int i = 0; i < OPS; i++){
+			int x = (i * 37) % DrawingOperationProtocol.CANVAS_WIDTH;
+			int y = (i * 91) % DrawingOperationProtocol.CANVAS_HEIGHT;
+			read.add("drawLineSegment -c [-16776961] -w [5] -p [" + x + " " + y + " " + (x+6) + " " + (y+4)
+					+ " " + (x+11) + " " + (y+9) + "] -i [op" + i + "]");
+			if (read.size() == READ_SIZE || i == OPS - 1){
+				inbox.add(read);
+				read.clear();
+				reads++;
+			}
+		}
+
+		// a delivery waiting on the EDT runs before anything queued after it, and delivers
+		// at least one batch, so this takes at most one pass per batch
+		Runnable nothing = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+		int passes = 0;
+		while (inbox.getBacklog() > 0){
+			assertTrue("messages left undelivered", passes++ <= OPS / MessageInbox.BATCH_SIZE + 1);
+			SwingUtilities.invokeAndWait(nothing);
+		}
+		// and the delivery of the last batch has finished
+		SwingUtilities.invokeAndWait(nothing);
+
+		assertEquals(0, offEDT.get());
+		assertEquals(0, outOfOrder.get());
+		assertEquals(OPS, received.get());
+		// at most one runnable per read, rather than one per message
+		assertTrue(inbox.getDeliveries() <= reads);
+	}
+}
@@ -0,0 +1,88 @@
+package model;
+
+/**
+ * Standard (RFC 4648) Base64 encoding and decoding, with padding and without
+ * line breaks, so that binary data such as a board snapshot can travel inside a
+ * single line of the text protocol.
+ *
+ * @author jlmart88
+ *
+ */
+public class Base64Codec {
+
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final int[] VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < VALUES.length; i++){
+			VALUES[i] = -1;
+		}
+		for (int i = 0; i < ALPHABET.length; i++){
+			VALUES[ALPHABET[i]] = i;
+		}
+	}
+
+	/**
+	 * @param data the bytes to encode
+	 * @return data in Base64
+	 */
+	public static String encode(byte[] data){
+		StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+		int i = 0;
+		for (; i + 2 < data.length; i += 3){
+			int n = (data[i] & 0xff) << 16 | (data[i+1] & 0xff) << 8 | (data[i+2] & 0xff);
+			out.append(ALPHABET[n >> 18]).append(ALPHABET[n >> 12 & 63])
+				.append(ALPHABET[n >> 6 & 63]).append(ALPHABET[n & 63]);
+		}
+		int remaining = data.length - i;
+		if (remaining == 1){
+			int n = (data[i] & 0xff) << 16;
+			out.append(ALPHABET[n >> 18]).append(ALPHABET[n >> 12 & 63]).append("==");
+		}
+		else if (remaining == 2){
+			int n = (data[i] & 0xff) << 16 | (data[i+1] & 0xff) << 8;
+			out.append(ALPHABET[n >> 18]).append(ALPHABET[n >> 12 & 63]).append(ALPHABET[n >> 6 & 63]).append('=');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param text Base64, as produced by encode
+	 * @return the bytes text encodes
+	 * @throws IllegalArgumentException if text is not valid Base64
+	 */
+	public static byte[] decode(String text){
+		int length = text.length();
+		if (length % 4 != 0){
+			throw new IllegalArgumentException("Base64 length must be a multiple of 4");
+		}
+		int padding = 0;
+		if (length > 0 && text.charAt(length-1) == '='){
+			padding++;
+			if (text.charAt(length-2) == '='){
+				padding++;
+			}
+		}
+		byte[] out = new byte[length / 4 * 3 - padding];
+		int o = 0;
+		for (int i = 0; i < length; i += 4){
+			int n = 0;
+			for (int j = 0; j < 4; j++){
+				char c = text.charAt(i+j);
+				int value = 0;
+				if (c != '=' || i + 4 < length){
+					value = c < 128 ? VALUES[c] : -1;
+					if (value < 0){
+						throw new IllegalArgumentException("invalid Base64 character: " + c);
+					}
+				}
+				n = n << 6 | value;
+			}
+			for (int shift = 16; shift >= 0 && o < out.length; shift -= 8){
+				out[o++] = (byte) (n >> shift);
+			}
+		}
+		return out;
+	}
+}
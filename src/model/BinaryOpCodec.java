@@ -0,0 +1,443 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs drawing messages (see DrawingOperationProtocol) into a compact binary
+ * form, and unpacks them back into exactly the same text.
+ *
+ * A message in the form createMessage produces becomes a record of:
+ *   HEADER: one byte, the operation's index in DRAWING_MESSAGE_LIST, plus FILLED_BIT if the shape is filled
+ *   BRUSH: a table reference to the color and width (not for eraseAll)
+ *   POINTS: a varint count, then each point as its difference (dx, dy) from the point before (or from
+ *       0, 0): one byte (dx + 8) * 16 + (dy + 8) if both are between -8 and 7 (other than 7, 7), or
+ *       POINT_ESCAPE followed by dx and dy as zigzag varints
+ *   ID: a table reference to the drawing ID's prefix, then its trailing number plus one as a varint
+ *       (0 if it has none)
+ * Anything else becomes a LITERAL_HEADER byte, a varint length and the message in UTF-8.
+ *
+ * Brushes and ID prefixes are interned in tables that grow as messages are encoded. A table
+ * reference is a varint: twice the entry's index for an entry that has been used before, or
+ * twice plus one followed by the entry itself the first time. So a BinaryOpCodec that decodes
+ * records in the order they were encoded builds the same tables as the one that encoded them,
+ * and a BinaryOpCodec can also decode records it encoded itself, in any order.
+ *
+ * Not threadsafe.
+ *
+ * @author jlmart88
+ *
+ */
+public class BinaryOpCodec {
+
+	public static final int FILLED_BIT = 0x08;
+	public static final int LITERAL_HEADER = 0xff;
+	public static final int POINT_ESCAPE = 0xff;
+
+	private static final int OPERATION_MASK = 0x07;
+	private static final int ERASE_ALL = DrawingOperationProtocol.DRAWING_MESSAGE_LIST.length - 1;
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	/**
+	 * The most digits a drawing ID's trailing number can have and still fit in a varint
+	 */
+	private static final int MAX_SUFFIX_DIGITS = 18;
+
+	private final List<Long> brushes = new ArrayList<Long>();
+	private final Map<Long, Integer> brushIndices = new HashMap<Long, Integer>();
+	private final List<String> prefixes = new ArrayList<String>();
+	private final Map<String, Integer> prefixIndices = new HashMap<String, Integer>();
+
+	// the message being encoded, and how far into it encode has got
+	private String text;
+	private int at;
+
+	/**
+	 * @param message a message, without a trailing newline
+	 * @return the most bytes encode can take for message
+	 */
+	public static int maxEncodedLength(String message){
+		// a char is at most 3 bytes of UTF-8, and no number takes more bytes than its digits and a separator
+		return message.length() * 3 + 16;
+	}
+
+	/**
+	 * Forget every interned brush and ID prefix.
+	 */
+	public void clear(){
+		brushes.clear();
+		brushIndices.clear();
+		prefixes.clear();
+		prefixIndices.clear();
+	}
+
+	/**
+	 * @return roughly how many bytes of memory the tables take
+	 */
+	public long getTableBytes(){
+		long bytes = brushes.size() * 64L;
+		for (String prefix : prefixes){
+			bytes += 64 + prefix.length() * 2;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Append message to out as a single record.
+	 *
+	 * @param message a message, without a trailing newline
+	 * @param out requires out.remaining() >= maxEncodedLength(message)
+	 */
+	public void encode(String message, ByteBuffer out){
+		int start = out.position();
+		int brushesBefore = brushes.size();
+		int prefixesBefore = prefixes.size();
+		text = message;
+		at = 0;
+		try {
+			encodeDrawing(out);
+			if (at == text.length()){
+				return;
+			}
+		} catch (IllegalArgumentException e) {
+			// not in the canonical form, so it can't be rebuilt from its parts
+		} finally {
+			text = null;
+		}
+		// undo anything interned for the record we are throwing away
+		while (brushes.size() > brushesBefore){
+			brushIndices.remove(brushes.remove(brushes.size() - 1));
+		}
+		while (prefixes.size() > prefixesBefore){
+			prefixIndices.remove(prefixes.remove(prefixes.size() - 1));
+		}
+		out.position(start);
+		byte[] bytes = message.getBytes(CHARSET);
+		out.put((byte) LITERAL_HEADER);
+		writeVarint(out, bytes.length);
+		out.put(bytes);
+	}
+
+	/**
+	 * Read one record from in.
+	 *
+	 * @param in a buffer positioned at a record encoded by a BinaryOpCodec
+	 * @return the message the record holds
+	 * @throws IllegalArgumentException if in does not hold a valid record
+	 */
+	public String decode(ByteBuffer in){
+		int header = in.get() & 0xff;
+		if (header == LITERAL_HEADER){
+			return readString(in);
+		}
+		int operation = header & OPERATION_MASK;
+		if (operation > ERASE_ALL){
+			throw new IllegalArgumentException("unknown record header " + header);
+		}
+		StringBuilder sb = new StringBuilder(64);
+		sb.append(DrawingOperationProtocol.DRAWING_MESSAGE_LIST[operation]);
+		if (operation != ERASE_ALL){
+			long brush = readBrush(in);
+			sb.append(" -c [").append((int) (brush >> 32)).append("] -w [").append((int) brush).append(']');
+			if ((header & FILLED_BIT) != 0){
+				sb.append(" -f");
+			}
+			sb.append(" -p [");
+			int count = readLength(in);
+			int x = 0;
+			int y = 0;
+			for (int i = 0; i < count; i++){
+				int b = in.get() & 0xff;
+				if (b == POINT_ESCAPE){
+					x += (int) readSignedVarint(in);
+					y += (int) readSignedVarint(in);
+				}
+				else {
+					x += (b >> 4) - 8;
+					y += (b & 0x0f) - 8;
+				}
+				if (i > 0){
+					sb.append(' ');
+				}
+				sb.append(x).append(' ').append(y);
+			}
+			sb.append(']');
+		}
+		sb.append(" -i [").append(readPrefix(in));
+		long suffix = readVarint(in);
+		if (suffix > 0){
+			sb.append(suffix - 1);
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+
+	/**
+	 * Encode the message being encoded as a drawing, reading it from at.
+	 *
+	 * @param out
+	 * @throws IllegalArgumentException if it isn't in the form createMessage produces
+	 */
+	private void encodeDrawing(ByteBuffer out){
+		int operation = -1;
+		for (int i = 0; i < DrawingOperationProtocol.DRAWING_MESSAGE_LIST.length; i++){
+			String name = DrawingOperationProtocol.DRAWING_MESSAGE_LIST[i];
+			if (text.startsWith(name + " ")){
+				operation = i;
+				at = name.length();
+				break;
+			}
+		}
+		if (operation < 0){
+			throw new IllegalArgumentException();
+		}
+		if (operation == ERASE_ALL){
+			out.put((byte) operation);
+		}
+		else {
+			expect(" -c [");
+			int color = readInt();
+			expect("] -w [");
+			int width = readInt();
+			expect("]");
+			boolean filled = text.startsWith(" -f", at);
+			if (filled){
+				at += 3;
+			}
+			expect(" -p [");
+			int close = text.indexOf(']', at);
+			int numbers = 1;
+			for (int i = at; i < close; i++){
+				if (text.charAt(i) == ' '){
+					numbers++;
+				}
+			}
+			if (close < 0 || numbers % 2 != 0){
+				throw new IllegalArgumentException();
+			}
+			out.put((byte) (operation | (filled ? FILLED_BIT : 0)));
+			writeBrush(out, (long) color << 32 | (width & 0xffffffffL));
+			writeVarint(out, numbers / 2);
+			int lastX = 0;
+			int lastY = 0;
+			for (int i = 0; i < numbers / 2; i++){
+				if (i > 0){
+					expect(" ");
+				}
+				int x = readInt();
+				expect(" ");
+				int y = readInt();
+				long dx = (long) x - lastX;
+				long dy = (long) y - lastY;
+				if (dx >= -8 && dx <= 7 && dy >= -8 && dy <= 7 && !(dx == 7 && dy == 7)){
+					// a pencil stroke is mostly short steps
+					out.put((byte) ((dx + 8) << 4 | (dy + 8)));
+				}
+				else {
+					out.put((byte) POINT_ESCAPE);
+					writeSignedVarint(out, dx);
+					writeSignedVarint(out, dy);
+				}
+				lastX = x;
+				lastY = y;
+			}
+			expect("]");
+		}
+		expect(" -i [");
+		int close = text.length() - 1;
+		if (close < at || text.charAt(close) != ']' || text.indexOf(']', at) != close){
+			throw new IllegalArgumentException();
+		}
+		String id = text.substring(at, close);
+		int digits = id.length();
+		while (digits > 0 && id.charAt(digits - 1) >= '0' && id.charAt(digits - 1) <= '9'){
+			digits--;
+		}
+		// a number is written without leading zeros, so they stay in the prefix
+		while (digits < id.length() - 1 && id.charAt(digits) == '0'){
+			digits++;
+		}
+		long suffix = 0;
+		if (digits < id.length() && id.length() - digits <= MAX_SUFFIX_DIGITS){
+			suffix = Long.parseLong(id.substring(digits)) + 1;
+		}
+		else {
+			digits = id.length();
+		}
+		writePrefix(out, id.substring(0, digits));
+		writeVarint(out, suffix);
+		at = text.length();
+	}
+
+	/**
+	 * Skip past s in the message being encoded.
+	 *
+	 * @throws IllegalArgumentException if it doesn't continue with s
+	 */
+	private void expect(String s){
+		if (!text.startsWith(s, at)){
+			throw new IllegalArgumentException();
+		}
+		at += s.length();
+	}
+
+	/**
+	 * Read an int, written the way Integer.toString writes it, from the message being encoded.
+	 *
+	 * @throws IllegalArgumentException if there isn't one
+	 */
+	private int readInt(){
+		int start = at;
+		if (at < text.length() && text.charAt(at) == '-'){
+			at++;
+		}
+		int digitsStart = at;
+		long value = 0;
+		while (at < text.length() && text.charAt(at) >= '0' && text.charAt(at) <= '9' && at - digitsStart < 11){
+			value = value * 10 + (text.charAt(at) - '0');
+			at++;
+		}
+		int digits = at - digitsStart;
+		if (digits == 0 || (digits > 1 && text.charAt(digitsStart) == '0')){
+			throw new IllegalArgumentException();
+		}
+		if (digitsStart > start){
+			value = -value;
+		}
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE || (value == 0 && digitsStart > start)){
+			throw new IllegalArgumentException();
+		}
+		return (int) value;
+	}
+
+	private void writeBrush(ByteBuffer out, long brush){
+		Integer index = brushIndices.get(brush);
+		if (index != null){
+			writeVarint(out, index * 2L);
+			return;
+		}
+		writeVarint(out, brushes.size() * 2L + 1);
+		writeSignedVarint(out, brush >> 32);
+		writeSignedVarint(out, (int) brush);
+		brushIndices.put(brush, brushes.size());
+		brushes.add(brush);
+	}
+
+	private long readBrush(ByteBuffer in){
+		long reference = readVarint(in);
+		int index = (int) (reference >>> 1);
+		if ((reference & 1) == 0){
+			if (index >= brushes.size()){
+				throw new IllegalArgumentException("unknown brush " + index);
+			}
+			return brushes.get(index);
+		}
+		long brush = readSignedVarint(in) << 32 | (readSignedVarint(in) & 0xffffffffL);
+		if (index == brushes.size()){
+			brushIndices.put(brush, index);
+			brushes.add(brush);
+		}
+		return brush;
+	}
+
+	private void writePrefix(ByteBuffer out, String prefix){
+		Integer index = prefixIndices.get(prefix);
+		if (index != null){
+			writeVarint(out, index * 2L);
+			return;
+		}
+		writeVarint(out, prefixes.size() * 2L + 1);
+		byte[] bytes = prefix.getBytes(CHARSET);
+		writeVarint(out, bytes.length);
+		out.put(bytes);
+		prefixIndices.put(prefix, prefixes.size());
+		prefixes.add(prefix);
+	}
+
+	private String readPrefix(ByteBuffer in){
+		long reference = readVarint(in);
+		int index = (int) (reference >>> 1);
+		if ((reference & 1) == 0){
+			if (index >= prefixes.size()){
+				throw new IllegalArgumentException("unknown drawing ID prefix " + index);
+			}
+			return prefixes.get(index);
+		}
+		String prefix = readString(in);
+		if (index == prefixes.size()){
+			prefixIndices.put(prefix, index);
+			prefixes.add(prefix);
+		}
+		return prefix;
+	}
+
+	/*
+	 * Read a string written as its length in bytes and then its bytes in UTF-8
+	 */
+	private static String readString(ByteBuffer in){
+		byte[] bytes = new byte[readLength(in)];
+		in.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	/*
+	 * Read the length of something that takes at least a byte an item, and so can't be longer
+	 * than what is left of in. Checked before anything is allocated for it, since a record
+	 * may come from a client that asks for gigabytes.
+	 */
+	private static int readLength(ByteBuffer in){
+		long length = readVarint(in);
+		if (length < 0 || length > in.remaining()){
+			throw new IllegalArgumentException("bad length " + length);
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Write value, which must not be negative, 7 bits at a time, low bits first, with the top
+	 * bit of each byte set if another follows.
+	 */
+	public static void writeVarint(ByteBuffer out, long value){
+		while ((value & ~0x7fL) != 0){
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * @return a varint written by writeVarint
+	 * @throws IllegalArgumentException if it is too long
+	 */
+	public static long readVarint(ByteBuffer in){
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7){
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0){
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("varint too long");
+	}
+
+	/**
+	 * Write value as a zigzag varint, so that numbers near zero take few bytes either side of it.
+	 */
+	public static void writeSignedVarint(ByteBuffer out, long value){
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * @return a varint written by writeSignedVarint
+	 */
+	public static long readSignedVarint(ByteBuffer in){
+		long value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
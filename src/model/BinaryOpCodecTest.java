@@ -0,0 +1,125 @@
+package model;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * I tested that every message BinaryOpCodec encodes decodes back to exactly the same text,
+ * both with the codec that encoded it and with a fresh codec reading the records in order
+ * (the way a client would read them off the wire). I split the messages into those in the
+ * form createMessage produces, which should be packed, and anything else, which should be
+ * kept as it is.
+ * @author jlmart88
+ */
+public class BinaryOpCodecTest {
+
+	private static final String[] PACKED = {
+		"drawLineSegment -c [-16776961] -w [20] -p [94 26 732 349] -i [blahblahblah]",
+		"drawRectangle -c [-16777216] -w [5] -p [114 72 228 186] -i [User01]",
+		"drawOval -c [-16777216] -w [5] -f -p [114 72 228 186] -i [User3 12]",
+		"eraseLineSegment -c [-1] -w [15] -p [0 0 -5 2147483647 -2147483648 3] -i [User00]",
+		"eraseAll -i [User2]",
+		"drawLineSegment -c [-16776961] -w [20] -p [95 27 733 350] -i [blahblahblah]",
+	};
+
+	private static final String[] LITERAL = {
+		"eraseAll 0 0 255 1",
+		"drawLineSegment -c [01] -w [5] -p [1 2 3 4] -i [x]",
+		"drawLineSegment -c [1] -w [5] -p [1 2 3] -i [x1]",
+		"drawLineSegment -c [1] -w [5] -p [1 2 3 4] -i [x1",
+		"drawLineSegment -c [1] -w [5] -p [1 2 3 4] -i [a]b]",
+	};
+
+	/**
+	 * Encode messages in order, check which were packed, and decode them again both ways
+	 */
+	private static void assertRoundTrips(String[] messages, boolean[] packed){
+		BinaryOpCodec encoder = new BinaryOpCodec();
+		ByteBuffer records = ByteBuffer.allocate(4096);
+		for (int i = 0; i < messages.length; i++){
+			int start = records.position();
+			encoder.encode(messages[i], records);
+			assertEquals(messages[i], !packed[i], (records.get(start) & 0xff) == BinaryOpCodec.LITERAL_HEADER);
+		}
+		records.flip();
+		BinaryOpCodec decoder = new BinaryOpCodec();
+		ByteBuffer copy = records.duplicate();
+		for (String message : messages){
+			assertEquals(message, decoder.decode(records));
+			assertEquals(message, encoder.decode(copy));
+		}
+		assertFalse(records.hasRemaining());
+	}
+
+	@Test
+	// Messages createMessage could have made are packed and come back unchanged.
+	public void packedMessagesTest(){
+		boolean[] packed = new boolean[PACKED.length];
+		Arrays.fill(packed, true);
+		assertRoundTrips(PACKED, packed);
+	}
+
+	@Test
+	// Anything else is kept as it is, without disturbing the packed messages around it.
+	public void literalMessagesTest(){
+		String[] mixed = new String[2*LITERAL.length];
+		boolean[] packed = new boolean[mixed.length];
+		for (int i = 0; i < LITERAL.length; i++){
+			mixed[2*i] = LITERAL[i];
+			mixed[2*i+1] = PACKED[i];
+			packed[2*i+1] = true;
+		}
+		assertRoundTrips(mixed, packed);
+	}
+
+	@Test
+	// A length larger than the rest of the record, or negative, is rejected before anything is
+	// allocated for it, including when a client sends it in a frame.
+	public void badLengthTest(){
+		int eraseAll = DrawingOperationProtocol.DRAWING_MESSAGE_LIST.length - 1;
+		byte[][] records = {
+			// a literal of 2 GiB
+			{(byte) BinaryOpCodec.LITERAL_HEADER, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+			// a literal of 10 bytes, cut off after 3
+			{(byte) BinaryOpCodec.LITERAL_HEADER, 10, 'a', 'b', 'c'},
+			// a literal of negative length
+			{(byte) BinaryOpCodec.LITERAL_HEADER, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01},
+			// a new drawing ID prefix of 2 GiB
+			{(byte) eraseAll, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+			// a line, with a new brush, of 2^31 points
+			{0, 1, 0, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08},
+		};
+		for (byte[] record : records){
+			try {
+				new BinaryOpCodec().decode(ByteBuffer.wrap(record));
+				fail("decoded " + Arrays.toString(record));
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			ByteBuffer frame = ByteBuffer.allocate(record.length + 1);
+			frame.put((byte) WireProtocol.OPS_FRAME).put(record).flip();
+			try {
+				WireProtocol.decodeFrame(frame, new ArrayList<String>());
+				fail("decoded frame " + Arrays.toString(record));
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	// A drawing reusing a brush and drawing ID prefix takes a fraction of its text.
+	public void internedTest(){
+		BinaryOpCodec codec = new BinaryOpCodec();
+		ByteBuffer out = ByteBuffer.allocate(256);
+		codec.encode(PACKED[0], out);
+		int first = out.position();
+		codec.encode(PACKED[5], out);
+		assertEquals(14, out.position() - first);
+	}
+}
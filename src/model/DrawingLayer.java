@@ -2,19 +2,25 @@ package model;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Image;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Stroke;
-import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
+
+import client.ClientEasel;
 
 /**
  * A class to represent a layer in a ClientCanvas. This layer is given an ID number
  * so that it can be removed once the server responds that this message has been drawn to 
  * the buffer. This class also generates the message for drawing itself to the server. 
  * 
- * The field drawingImage is provided to allow multiple drawings to be drawn on top of the buffer before
- * they are processed by the server. The attribute field should be drawn on by a ClientCanvas
+ * A ClientCanvas draws each of its layers on top of its buffer until the server has processed
+ * it. Layers have no image of their own: they are drawn from their points (see toOperation and
+ * DrawingRasterizer), so drawing them costs as much as the ink in them, not the size of the canvas.
+ * The points are kept packed in an int[] of x,y pairs, along with the box around them, so that
+ * finding the part of the canvas a drawing covers doesn't go through its points. Its operation
+ * is made once for every point added, so a finished drawing is painted without copying its points.
  * 
  * The fields shapeType/shapeFilled must be provided when instantiating the class, but
  * will be appropriately ignored after creation if the drawingType is not ClientEasel.SHAPE_BUTTON
@@ -26,14 +32,13 @@ import java.util.ArrayList;
  * 		***If the shape is a square/circle, the points do not need to be pre-scaled
  * If the drawing is eraseAll, then the pointList may be empty
  * All points in the drawing should be added before createMessage is called
- * drawingImage should be drawn on and accessed in a thread-safe manner 
+ * points holds the x and y of each point in turn, in its first pointLength entries
+ * minX, minY, maxX, maxY are the least and greatest x and y of those points, if there are any
+ * operation is null, or the DrawingOperation for the points added so far
  * 
  * Concurrency Argument:
- * All fields in this class (except drawingImage) that show risk of concurrency 
+ * All fields in this class that show risk of concurrency 
  * 		are only ever accessed by obtaining the lock for the class
- * The field drawingImage is not thread-safe, as it needs to be drawn on externally in order for it
- * 		to physically represent the drawing that this class abstracts. This drawingImage should be drawn on
- * 		and accessed in a thread-safe manner to prevent concurrency issues
  * 
  * @author jlmart88
  *
@@ -41,16 +46,18 @@ import java.util.ArrayList;
 public class DrawingLayer {
 	
 	private final String drawingID;
-	private final Image drawingImage;
 	private final String drawingType;
 	private final String shapeType;
-	private final ArrayList<Point> pointList;
+	private int[] points;
+	private int pointLength;
+	private int minX, minY, maxX, maxY;
+	private DrawingOperation operation;
 	private final Color color;
 	private final Stroke stroke;
 	private final boolean shapeFilled;
 	
 	// create a DrawingLayer
-	public DrawingLayer(String drawingID, int width, int height, Color color, Stroke stroke, String drawingType, String shapeType, boolean shapeFilled){
+	public DrawingLayer(String drawingID, Color color, Stroke stroke, String drawingType, String shapeType, boolean shapeFilled){
 		this.drawingID = drawingID;
 		this.drawingType = drawingType;
 		this.shapeType = shapeType;
@@ -58,13 +65,8 @@ public class DrawingLayer {
 		this.color = new Color(color.getRGB());
 		BasicStroke basicStroke = (BasicStroke) stroke;
 		this.stroke = new BasicStroke(basicStroke.getLineWidth(),  basicStroke.getEndCap(), basicStroke.getLineJoin());
-		drawingImage = new BufferedImage(width,height,BufferedImage.TYPE_INT_ARGB);	
-		pointList = new ArrayList<Point>();
-	}
-	
-	// return the image for this drawing to be drawn on
-	public synchronized Image getImage(){
-		return drawingImage;
+		points = new int[8];
+		pointLength = 0;
 	}
 	
 	// return the ID of this drawing
@@ -84,9 +86,9 @@ public class DrawingLayer {
 	
 	// return the list of points in this drawing
 	public synchronized ArrayList<Point> getPointList(){
-		ArrayList<Point> out = new ArrayList<Point>();
-		for (Point point: pointList){
-			out.add(point);
+		ArrayList<Point> out = new ArrayList<Point>(pointLength/2);
+		for (int i = 0; i < pointLength; i += 2){
+			out.add(new Point(points[i], points[i+1]));
 		}
 		return out;
 	}
@@ -117,6 +119,40 @@ public class DrawingLayer {
 		return DrawingOperationProtocol.createMessage(this);
 	}
 	
+	/**
+	 * Creates a DrawingOperation with this drawing's points so far, for drawing it
+	 * without its image; the same one is returned until another point is added
+	 * 
+	 * @return DrawingOperation for this drawing
+	 */
+	public synchronized DrawingOperation toOperation(){
+		if (operation == null){
+			operation = new DrawingOperation(drawingID, getColor(), (BasicStroke) getStroke(), drawingType, 
+					shapeType, shapeFilled, points, pointLength);
+		}
+		return operation;
+	}
+	
+	/**
+	 * Finds the part of a width x height canvas that drawing this drawing changes, the same as 
+	 * DrawingRasterizer.getBounds(toOperation(), width, height) without copying the points
+	 * 
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @return a Rectangle covering every pixel the drawing could change
+	 */
+	public synchronized Rectangle getBounds(int width, int height){
+		if (!(drawingType.equals(ClientEasel.PENCIL_BUTTON) || drawingType.equals(ClientEasel.LINE_BUTTON)
+				|| drawingType.equals(ClientEasel.ERASE_BUTTON) || drawingType.equals(ClientEasel.SHAPE_BUTTON))){
+			// erasing everything
+			return new Rectangle(0, 0, width, height);
+		}
+		if (pointLength == 0){
+			return new Rectangle();
+		}
+		return DrawingRasterizer.getBounds(minX, minY, maxX, maxY, ((BasicStroke) stroke).getLineWidth());
+	}
+	
 	/**
 	 * Adds a point to the pointList of what points to draw
 	 * 
@@ -126,7 +162,22 @@ public class DrawingLayer {
 	 * @param y the y/yLen
 	 */
 	public synchronized void addPoint(int x, int y){
-		pointList.add(new Point(x,y));
+		if (pointLength == points.length){
+			points = Arrays.copyOf(points, 2*pointLength);
+		}
+		if (pointLength == 0){
+			minX = maxX = x;
+			minY = maxY = y;
+		}
+		else {
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+		points[pointLength++] = x;
+		points[pointLength++] = y;
+		operation = null;
 	}
 	
 	
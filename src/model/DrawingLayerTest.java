@@ -11,16 +11,17 @@ import java.util.ArrayList;
 
 import org.junit.Test;
 
-import client.ClientCanvas;
 import client.ClientEasel;
 
 /**
  * This class contains the testing strategy used to ensure that DrawingLayer works correctly
  * 
  * Things to test:
- * - Fields are not exposed when returning their values (except drawingImage, see docs)
+ * - Fields are not exposed when returning their values
  * - Points are added properly to the pointList
  * - Returns itself as a message properly, as outlined in DrawingOperationProtocol#
+ * - Its bounds are those of the operation it makes, as the points are added
+ * - Its operation is only made again once a point is added
  * 
  * @author jlmart88
  *
@@ -31,15 +32,13 @@ public class DrawingLayerTest {
 	@Test
     public void fieldsNotExposed() {
 		String drawingID = "drawingID";
-		int width = ClientCanvas.DEFAULT_WIDTH;
-		int height = ClientCanvas.DEFAULT_HEIGHT;
 		String drawingType = ClientEasel.PENCIL_BUTTON;
 		String shapeType = ClientEasel.CIRCLE;
 		Color color = Color.BLUE;
 		Stroke stroke = new BasicStroke(30);
 		boolean shapeFilled = false;
 		
-		DrawingLayer drawing = new DrawingLayer(drawingID, width, height, color, stroke, 
+		DrawingLayer drawing = new DrawingLayer(drawingID, color, stroke, 
 										drawingType, shapeType, shapeFilled);
 		
 		drawing.addPoint(0, 1);
@@ -74,15 +73,13 @@ public class DrawingLayerTest {
 	@Test
 	public void pointsAdded() {
 		String drawingID = "drawingID";
-		int width = ClientCanvas.DEFAULT_WIDTH;
-		int height = ClientCanvas.DEFAULT_HEIGHT;
 		String drawingType = ClientEasel.PENCIL_BUTTON;
 		String shapeType = ClientEasel.CIRCLE;
 		Color color = Color.BLUE;
 		Stroke stroke = new BasicStroke(30);
 		boolean shapeFilled = false;
 		
-		DrawingLayer drawing = new DrawingLayer(drawingID, width, height, color, stroke, 
+		DrawingLayer drawing = new DrawingLayer(drawingID, color, stroke, 
 										drawingType, shapeType, shapeFilled);
 		
 		drawing.addPoint(0, 1);
@@ -104,9 +101,6 @@ public class DrawingLayerTest {
 		String drawingID1 = "drawingID1";
 		String drawingID2 = "drawingID2";
 		
-		int width = ClientCanvas.DEFAULT_WIDTH;
-		int height = ClientCanvas.DEFAULT_HEIGHT;
-		
 		String drawingType1 = ClientEasel.PENCIL_BUTTON;
 		String drawingType2 = ClientEasel.LINE_BUTTON;
 		String drawingType3 = ClientEasel.ERASE_BUTTON;
@@ -140,42 +134,42 @@ public class DrawingLayerTest {
 		String shapePointListMessage = "[0 1 5 23]";
 		String squarePointListMessage = "[0 1 5 6]";
 		
-		DrawingLayer drawingPencil = new DrawingLayer(drawingID1, width, height, color1, stroke1, 
+		DrawingLayer drawingPencil = new DrawingLayer(drawingID1, color1, stroke1, 
 				drawingType1, shapeType1, shapeFilled1);
 		String drawingPencilMessage = "drawLineSegment -c ["+color1.getRGB()+"] -w ["+(int) stroke1.getLineWidth()
 				+"] -f -p "+pencilPointListMessage+" -i ["+drawingID1+"]";
 		
-		DrawingLayer drawingLine = new DrawingLayer(drawingID2, width, height, color2, stroke2, 
+		DrawingLayer drawingLine = new DrawingLayer(drawingID2, color2, stroke2, 
 				drawingType2, shapeType2, shapeFilled2);
 		String drawingLineMessage = "drawLineSegment -c ["+color2.getRGB()+"] -w ["+(int) stroke2.getLineWidth()
 				+"] -p "+shapePointListMessage+" -i ["+drawingID2+"]";
 		
-		DrawingLayer drawingErase = new DrawingLayer(drawingID1, width, height, color2, stroke2, 
+		DrawingLayer drawingErase = new DrawingLayer(drawingID1, color2, stroke2, 
 				drawingType3, shapeType3, shapeFilled2);
 		String drawingEraseMessage = "eraseLineSegment -c ["+color2.getRGB()+"] -w ["+(int) stroke2.getLineWidth()
 				+"] -p "+pencilPointListMessage+" -i ["+drawingID1+"]";
 		
-		DrawingLayer drawingCircle = new DrawingLayer(drawingID2, width, height, color1, stroke1, 
+		DrawingLayer drawingCircle = new DrawingLayer(drawingID2, color1, stroke1, 
 				drawingType4, shapeType1, shapeFilled2);
 		String drawingCircleMessage = "drawOval -c ["+color1.getRGB()+"] -w ["+(int) stroke1.getLineWidth()
 				+"] -p "+squarePointListMessage+" -i ["+drawingID2+"]";
 		
-		DrawingLayer drawingSquare = new DrawingLayer(drawingID2, width, height, color1, stroke2, 
+		DrawingLayer drawingSquare = new DrawingLayer(drawingID2, color1, stroke2, 
 				drawingType4, shapeType2, shapeFilled1);
 		String drawingSquareMessage = "drawRectangle -c ["+color1.getRGB()+"] -w ["+(int) stroke2.getLineWidth()
 				+"] -f -p "+squarePointListMessage+" -i ["+drawingID2+"]";
 		
-		DrawingLayer drawingRectangle = new DrawingLayer(drawingID2, width, height, color2, stroke1, 
+		DrawingLayer drawingRectangle = new DrawingLayer(drawingID2, color2, stroke1, 
 				drawingType4, shapeType3, shapeFilled2);
 		String drawingRectangleMessage = "drawRectangle -c ["+color2.getRGB()+"] -w ["+(int) stroke1.getLineWidth()
 				+"] -p "+shapePointListMessage+" -i ["+drawingID2+"]";
 		
-		DrawingLayer drawingOval = new DrawingLayer(drawingID2, width, height, color1, stroke1, 
+		DrawingLayer drawingOval = new DrawingLayer(drawingID2, color1, stroke1, 
 				drawingType4, shapeType4, shapeFilled1);
 		String drawingOvalMessage = "drawOval -c ["+color1.getRGB()+"] -w ["+(int) stroke1.getLineWidth()
 				+"] -f -p "+shapePointListMessage+" -i ["+drawingID2+"]";
 		
-		DrawingLayer drawingEraseAll = new DrawingLayer(drawingID1, width, height, color1, stroke1, 
+		DrawingLayer drawingEraseAll = new DrawingLayer(drawingID1, color1, stroke1, 
 				drawingType5, shapeType2, shapeFilled2);
 		String drawingEraseAllMessage = "eraseAll -i ["+drawingID1+"]";
 		
@@ -201,5 +195,46 @@ public class DrawingLayerTest {
 		assertEquals(drawingOval.createMessage(), drawingOvalMessage);
 		assertEquals(drawingEraseAll.createMessage(), drawingEraseAllMessage);		
 	}
+	
+	@Test
+	public void boundsMatchOperation() {
+		int width = 800;
+		int height = 600;
+		DrawingLayer pencil = new DrawingLayer("pencil", Color.BLUE, new BasicStroke(7), 
+				ClientEasel.PENCIL_BUTTON, ClientEasel.CIRCLE, false);
+		DrawingLayer square = new DrawingLayer("square", Color.BLUE, new BasicStroke(3), 
+				ClientEasel.SHAPE_BUTTON, ClientEasel.SQUARE, true);
+		DrawingLayer eraseAll = new DrawingLayer("eraseAll", Color.BLUE, new BasicStroke(3), 
+				ClientEasel.ERASE_ALL_BUTTON, ClientEasel.SQUARE, false);
+		
+		assertEquals(DrawingRasterizer.getBounds(pencil.toOperation(), width, height), pencil.getBounds(width, height));
+		assertEquals(DrawingRasterizer.getBounds(eraseAll.toOperation(), width, height), eraseAll.getBounds(width, height));
+		
+		int[] xs = {50, 10, 300, 40, 799};
+		int[] ys = {60, 500, 2, 599, 0};
+		for (int i = 0; i < xs.length; i++){
+			pencil.addPoint(xs[i], ys[i]);
+			assertEquals(DrawingRasterizer.getBounds(pencil.toOperation(), width, height), pencil.getBounds(width, height));
+		}
+		square.addPoint(100, 100);
+		square.addPoint(20, 300);
+		assertEquals(DrawingRasterizer.getBounds(square.toOperation(), width, height), square.getBounds(width, height));
+	}
+	
+	@Test
+	public void operationCached() {
+		DrawingLayer pencil = new DrawingLayer("pencil", Color.BLUE, new BasicStroke(7), 
+				ClientEasel.PENCIL_BUTTON, ClientEasel.CIRCLE, false);
+		pencil.addPoint(1, 2);
+		DrawingOperation operation = pencil.toOperation();
+		assertTrue(operation == pencil.toOperation());
+		
+		pencil.addPoint(3, 4);
+		DrawingOperation longer = pencil.toOperation();
+		assertFalse(operation == longer);
+		assertEquals(1, operation.getPointCount());
+		assertEquals(2, longer.getPointCount());
+		assertTrue(longer == pencil.toOperation());
+	}
 
 }
@@ -0,0 +1,96 @@
+package model;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * A drawing operation read from a message, such as one a ClientCanvas receives from the
+ * server. Unlike a DrawingLayer it has no image to draw on and never will, since it has
+ * already been drawn by whoever sent it; it only holds what is needed to draw it again,
+ * with its points packed into an int[] of x,y pairs.
+ *
+ * Rep Invariant:
+ * The drawingType should be one of the static Strings ClientEasel.XXXXX_BUTTON
+ * points has an even length, and holds the x and y of each point in turn
+ *
+ * Concurrency Argument:
+ * This class is immutable: points is copied in and never handed out, and Color and
+ * BasicStroke are immutable themselves, so it can be shared freely between threads
+ *
+ * @author jlmart88
+ *
+ */
+public final class DrawingOperation {
+
+	private final String drawingID;
+	private final String drawingType;
+	private final String shapeType;
+	private final Color color;
+	private final BasicStroke stroke;
+	private final boolean shapeFilled;
+	private final int[] points;
+
+	/**
+	 * Create a DrawingOperation
+	 *
+	 * @param points the x and y of each point in turn, requires an even length; only the
+	 * 		first pointLength entries are used
+	 * @param pointLength the number of entries of points to use
+	 */
+	public DrawingOperation(String drawingID, Color color, BasicStroke stroke, String drawingType, String shapeType,
+			boolean shapeFilled, int[] points, int pointLength){
+		this.drawingID = drawingID;
+		this.drawingType = drawingType;
+		this.shapeType = shapeType;
+		this.shapeFilled = shapeFilled;
+		this.color = color;
+		this.stroke = stroke;
+		this.points = Arrays.copyOf(points, pointLength);
+	}
+
+	// return the ID of this drawing
+	public String getDrawingID(){
+		return drawingID;
+	}
+
+	// return what tool was used to create this drawing
+	public String getDrawingType(){
+		return drawingType;
+	}
+
+	// return what type of shape this drawing is
+	public String getShapeType(){
+		return shapeType;
+	}
+
+	// return whether the shape is filled or not
+	public boolean getShapeFilled(){
+		return shapeFilled;
+	}
+
+	// return the color of this drawing
+	public Color getColor(){
+		return color;
+	}
+
+	// return the stroke of this drawing
+	public BasicStroke getStroke(){
+		return stroke;
+	}
+
+	// return the number of points in this drawing
+	public int getPointCount(){
+		return points.length / 2;
+	}
+
+	// return the x of the index-th point
+	public int getX(int index){
+		return points[2*index];
+	}
+
+	// return the y of the index-th point
+	public int getY(int index){
+		return points[2*index+1];
+	}
+}
@@ -3,13 +3,15 @@ package model;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Point;
-import java.awt.Stroke;
 import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-import java.util.Queue;
+
+import javax.imageio.ImageIO;
 
 import client.ClientEasel;
 import client.ClientCanvas;
@@ -28,6 +30,11 @@ import client.ClientCanvas;
  * POINT: INT SPACE INT SPACE?
  * DRAWING_ID: "-i" SPACE "[" STRING "]"
  * FILLED_FLAG: SPACE "-f" 
+ * 
+ * A board can also be sent as a picture of every drawing operation up to a point:
+ * SNAPSHOT: "boardSnapshot" SPACE INT SPACE BASE64
+ * where INT is the number of drawing operations the board had received and BASE64 is
+ * the picture as a PNG, in Base64
  * STRING: ([a-z] | [A-Z] | INT | SPACE)+
  * INT: [0-9]+
  * SPACE: " "
@@ -43,6 +50,52 @@ public class DrawingOperationProtocol {
 	public static final String RECTANGLE_MESSAGE = "drawRectangle";
 	public static final String ERASE_ALL_MESSAGE = "eraseAll";
 	public static final String[] DRAWING_MESSAGE_LIST = {LINE_MESSAGE, ERASE_MESSAGE, OVAL_MESSAGE, RECTANGLE_MESSAGE, ERASE_ALL_MESSAGE};
+	public static final String SNAPSHOT_MESSAGE = "boardSnapshot";
+	
+	// the size of every board, and so of every canvas and snapshot
+	public static final int CANVAS_WIDTH = 800;
+	public static final int CANVAS_HEIGHT = 600;
+	
+	/**
+	 * Creates a snapshot message for a board 
+	 * 
+	 * @param sequence the number of drawing operations drawn on the image
+	 * @param image the board
+	 * @return String message to send to a client
+	 */
+	public static String createSnapshotMessage(long sequence, BufferedImage image){
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(image, "png", png);
+		} catch (IOException e) {
+			// ByteArrayOutputStreams don't throw
+			throw new AssertionError(e);
+		}
+		return SNAPSHOT_MESSAGE + " " + sequence + " " + Base64Codec.encode(png.toByteArray());
+	}
+	
+	/**
+	 * Reads in a snapshot message and returns the picture it holds
+	 * 
+	 * @param message String following the SNAPSHOT protocol
+	 * @return the board's picture
+	 * @throws IllegalArgumentException if message is not a valid snapshot
+	 */
+	public static BufferedImage readSnapshotMessage(String message){
+		String[] args = message.split(" ");
+		if (args.length != 3 || !args[0].equals(SNAPSHOT_MESSAGE)){
+			throw new IllegalArgumentException("Improperly Formatted Snapshot, see DrawingOperationProtocol for more info");
+		}
+		try {
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(Base64Codec.decode(args[2])));
+			if (image == null){
+				throw new IllegalArgumentException("snapshot is not an image");
+			}
+			return image;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("unable to read snapshot", e);
+		}
+	}
 	
 	/**
 	 * Creates a message to be sent to the server for how to draw the input drawing 
@@ -51,151 +104,267 @@ public class DrawingOperationProtocol {
 	 * @return String message to send to the server
 	 */
 	public static String createMessage(DrawingLayer drawing){
-		
-		String out = "";
 		ArrayList<Point> pointList = drawing.getPointList();
+		// room for the operation, brush and ID, and about 8 characters a point
+		StringBuilder out = new StringBuilder(64 + drawing.getDrawingID().length() + 8 * pointList.size());
+		appendMessage(drawing, pointList, out);
+		return out.toString();
+	}
+	
+	/**
+	 * Appends the message createMessage would create for the input drawing to out, so that a
+	 * caller sending many drawings can reuse one buffer. Takes time linear in the number of points.
+	 * 
+	 * @param DrawingLayer the drawing to convert to a message
+	 * @param out where to append the message
+	 */
+	public static void appendMessage(DrawingLayer drawing, StringBuilder out){
+		appendMessage(drawing, drawing.getPointList(), out);
+	}
+	
+	private static void appendMessage(DrawingLayer drawing, ArrayList<Point> pointList, StringBuilder out){
 		
 		// determine which type of drawing operation we should send
 		if (drawing.getDrawingType().equals(ClientEasel.PENCIL_BUTTON) || drawing.getDrawingType().equals(ClientEasel.LINE_BUTTON)){
-			out += LINE_MESSAGE;
+			out.append(LINE_MESSAGE);
 		}
 		else if (drawing.getDrawingType().equals(ClientEasel.ERASE_BUTTON)){
-			out += ERASE_MESSAGE;
+			out.append(ERASE_MESSAGE);
 		}
 		else if (drawing.getDrawingType().equals(ClientEasel.SHAPE_BUTTON)){
 			if (drawing.getShapeType().equals(ClientEasel.CIRCLE) || drawing.getShapeType().equals(ClientEasel.OVAL)){
-				out += OVAL_MESSAGE;
+				out.append(OVAL_MESSAGE);
 			}
 			else{
-				out += RECTANGLE_MESSAGE;
+				out.append(RECTANGLE_MESSAGE);
 			}
 		}
 		else {
-			out += ERASE_ALL_MESSAGE+" -i ["+drawing.getDrawingID()+"]";
-			return out;
+			out.append(ERASE_ALL_MESSAGE).append(" -i [").append(drawing.getDrawingID()).append(']');
+			return;
 		}
 		
 		
 		// add the brush info
-		out += " -c [" + drawing.getColor().getRGB() + "]";
-		out += " -w [" + (int) ((BasicStroke) drawing.getStroke()).getLineWidth() + "]";
-		if (drawing.getShapeFilled()) out += " -f";
-		out += " -p ";
+		out.append(" -c [").append(drawing.getColor().getRGB()).append(']');
+		out.append(" -w [").append((int) ((BasicStroke) drawing.getStroke()).getLineWidth()).append(']');
+		if (drawing.getShapeFilled()) out.append(" -f");
+		out.append(" -p ");
 		
 		// add the points to the message
 		if (pointList.size()<2){ // if we dont have at least two points, then pretend we are drawing at the origin
-			out += "[0 0 0 0]";
+			out.append("[0 0 0 0]");
 		}
 		else{
-			out += "[";
+			out.append('[');
 			if ((drawing.getDrawingType().equals(ClientEasel.SHAPE_BUTTON)) && 
 					(drawing.getShapeType().equals(ClientEasel.CIRCLE) || drawing.getShapeType().equals(ClientEasel.SQUARE))){
 				Line2D line = ClientCanvas.getSquareCoordinates(pointList.get(0).x, pointList.get(0).y, 
 																		pointList.get(1).x, pointList.get(1).y);
-				out +=(int) line.getX1()+" "+(int) line.getY1()+" "+(int) line.getX2()+" "+(int) line.getY2();
+				out.append((int) line.getX1()).append(' ').append((int) line.getY1()).append(' ')
+						.append((int) line.getX2()).append(' ').append((int) line.getY2());
 			}
 			else{
-				for (Point point:pointList){
-					out += point.x+" "+point.y+" ";
+				for (int i = 0; i < pointList.size(); i++){
+					Point point = pointList.get(i);
+					if (i > 0) out.append(' ');
+					out.append(point.x).append(' ').append(point.y);
 				}
-				out = out.substring(0, out.length()-1);
 			}
-			out += "]";
+			out.append(']');
 		}
 
-		out += " -i ["+drawing.getDrawingID()+"]";
-		return out;
+		out.append(" -i [").append(drawing.getDrawingID()).append(']');
 	}
 	
 	/**
 	 * Reads in a drawing message and returns a DrawingLayer representing it
 	 * 
+	 * Only needed where the drawing will be drawn on or sent on again; use readOperation
+	 * to just draw the message.
+	 * 
 	 * @param message String following the message protocol
 	 * @return DrawingLayer representing the message
 	 */
 	public static DrawingLayer readMessage(String message){
+		DrawingOperation operation = readOperation(message);
+		DrawingLayer out = new DrawingLayer(operation.getDrawingID(), operation.getColor(), 
+								operation.getStroke(), operation.getDrawingType(), 
+								operation.getShapeType(), operation.getShapeFilled());
+		for (int i = 0; i < operation.getPointCount(); i++){
+			out.addPoint(operation.getX(i), operation.getY(i));
+		}
+		return out;
+	}
+	
+	/**
+	 * Reads in a drawing message and returns the DrawingOperation it holds
+	 * 
+	 * The message is read in a single pass, token by token, without splitting it up; numbers are
+	 * parsed in place and the points are collected straight into an int[]. Flags may come in any 
+	 * order. A malformed message is reported on System.err, and whatever was read before the 
+	 * problem is returned.
+	 * 
+	 * @param message String following the message protocol
+	 * @return DrawingOperation representing the message
+	 */
+	public static DrawingOperation readOperation(String message){
 		
 		String drawingID = "";
 		String drawingType = "";
 		String shapeType = "";
-		ArrayList<Point> pointList = new ArrayList<Point>();
+		int[] points = new int[8];
+		int pointLength = 0;
 		Color color = Color.black;
-		Stroke stroke = new BasicStroke();
+		BasicStroke stroke = new BasicStroke();
 		boolean shapeFilled = false;
 		
-		String[] args = message.split(" ");
-		Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
-		
+		int length = message.length();
+		int at = 0;
 		try {
-            while ( ! arguments.isEmpty()) {
-                String flag = arguments.remove();
-                try {
-                	if (flag.equals(ERASE_ALL_MESSAGE)){
-                		drawingType = ClientEasel.ERASE_ALL_BUTTON;
-                	}
-                	else if (flag.equals(LINE_MESSAGE)){
-                		drawingType = ClientEasel.LINE_BUTTON;
-                	}
-                	else if (flag.equals(ERASE_MESSAGE)){
-                		drawingType = ClientEasel.ERASE_BUTTON;
-                	}
-                	else if (flag.equals(OVAL_MESSAGE)){
-                		drawingType = ClientEasel.SHAPE_BUTTON;
-                		shapeType = ClientEasel.OVAL;
-                	}
-                	else if (flag.equals(RECTANGLE_MESSAGE)){
-                		drawingType = ClientEasel.SHAPE_BUTTON;
-                		shapeType = ClientEasel.RECTANGLE;
-                	}
-                	
-                	else if (flag.equals("-c")) {
-                         String colorValue = arguments.remove();
-                         colorValue = colorValue.replace("[", "").replace("]", "");
-                         color = new Color(Integer.parseInt(colorValue));
-                    } 
-                	else if (flag.equals("-w")) {
-                		String widthValue = arguments.remove();
-                        widthValue = widthValue.replace("[", "").replace("]", "");
-                        stroke = new BasicStroke(Integer.parseInt(widthValue),BasicStroke.CAP_ROUND, 
-                    			BasicStroke.JOIN_ROUND);
-                    } 
-                	else if (flag.equals("-p")) {
-                        while (!arguments.peek().contains("-")){
-                        	String xValue = arguments.remove();
-                        	String yValue = arguments.remove();
-                        	xValue = xValue.replace("[", "").replace("]", "");
-                        	yValue = yValue.replace("[", "").replace("]", "");
-                        	pointList.add(new Point(Integer.parseInt(xValue), Integer.parseInt(yValue)));
-                        }
-
-                    } 
-                	else if (flag.equals("-i")) {
-                        String idValue = arguments.remove();
-                        idValue = idValue.replace("[", "").replace("]", "");
-                        drawingID = idValue;
-                    } 
-                	else if (flag.equals("-f")) {
-                        shapeFilled = true;
-                    } else {
-                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
-                    }
-                } catch (NoSuchElementException nsee) {
-                    throw new IllegalArgumentException("missing argument for " + flag);
-                } catch (NumberFormatException nfe) {
-                    throw new IllegalArgumentException("unable to parse number for " + flag);
-                }
-            }
-        } catch (IllegalArgumentException iae) {
-            System.err.println(iae.getMessage());
-            System.err.println("Improperly Formatted Message, see DrawingOperationProtocol for more info");
-        }
-		
-		DrawingLayer out = new DrawingLayer(drawingID, ClientCanvas.DEFAULT_WIDTH, ClientCanvas.DEFAULT_HEIGHT,
-								color, stroke, drawingType, shapeType, shapeFilled);
-		for (Point point: pointList){
-			out.addPoint(point.x, point.y);
+			while (at < length){
+				int end = tokenEnd(message, at);
+				if (isToken(message, at, end, ERASE_ALL_MESSAGE)){
+					drawingType = ClientEasel.ERASE_ALL_BUTTON;
+				}
+				else if (isToken(message, at, end, LINE_MESSAGE)){
+					drawingType = ClientEasel.LINE_BUTTON;
+				}
+				else if (isToken(message, at, end, ERASE_MESSAGE)){
+					drawingType = ClientEasel.ERASE_BUTTON;
+				}
+				else if (isToken(message, at, end, OVAL_MESSAGE)){
+					drawingType = ClientEasel.SHAPE_BUTTON;
+					shapeType = ClientEasel.OVAL;
+				}
+				else if (isToken(message, at, end, RECTANGLE_MESSAGE)){
+					drawingType = ClientEasel.SHAPE_BUTTON;
+					shapeType = ClientEasel.RECTANGLE;
+				}
+				else if (isToken(message, at, end, "-c")){
+					at = argumentStart(message, end, "-c");
+					end = tokenEnd(message, at);
+					color = new Color(readInt(message, at, end, "-c"));
+				}
+				else if (isToken(message, at, end, "-w")){
+					at = argumentStart(message, end, "-w");
+					end = tokenEnd(message, at);
+					stroke = new BasicStroke(readInt(message, at, end, "-w"), BasicStroke.CAP_ROUND, 
+							BasicStroke.JOIN_ROUND);
+				}
+				else if (isToken(message, at, end, "-p")){
+					// every token up to the next flag is a coordinate
+					while (end + 1 < length && !isFlag(message, end + 1)){
+						at = end + 1;
+						end = tokenEnd(message, at);
+						int x = readInt(message, at, end, "-p");
+						at = argumentStart(message, end, "-p");
+						end = tokenEnd(message, at);
+						int y = readInt(message, at, end, "-p");
+						if (pointLength == points.length){
+							points = Arrays.copyOf(points, 2 * pointLength);
+						}
+						points[pointLength++] = x;
+						points[pointLength++] = y;
+					}
+				}
+				else if (isToken(message, at, end, "-i")){
+					at = argumentStart(message, end, "-i");
+					// the ID runs to the token that closes its bracket, since it may hold spaces
+					end = tokenEnd(message, at);
+					while (message.charAt(end - 1) != ']' && end < length){
+						end = tokenEnd(message, end + 1);
+					}
+					int idStart = at < end && message.charAt(at) == '[' ? at + 1 : at;
+					int idEnd = message.charAt(end - 1) == ']' && end - 1 >= idStart ? end - 1 : end;
+					drawingID = message.substring(idStart, idEnd);
+				}
+				else if (isToken(message, at, end, "-f")){
+					shapeFilled = true;
+				}
+				else {
+					throw new IllegalArgumentException("unknown option: \"" + message.substring(at, end) + "\"");
+				}
+				at = end + 1;
+			}
+		} catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			System.err.println("Improperly Formatted Message, see DrawingOperationProtocol for more info");
 		}
 		
-		return out;
+		return new DrawingOperation(drawingID, color, stroke, drawingType, shapeType, shapeFilled, points, pointLength);
+	}
+	
+	/**
+	 * @param message
+	 * @param at the start of a token
+	 * @return the index of the space after the token at at, or message.length() if it is the last
+	 */
+	private static int tokenEnd(String message, int at){
+		int end = message.indexOf(' ', at);
+		return end < 0 ? message.length() : end;
+	}
+	
+	/**
+	 * @return true if the token from start to end is exactly token
+	 */
+	private static boolean isToken(String message, int start, int end, String token){
+		return end - start == token.length() && message.startsWith(token, start);
+	}
+	
+	/**
+	 * @return true if the token at at is a flag, such as "-i", rather than a number such as "-5]"
+	 */
+	private static boolean isFlag(String message, int at){
+		return at + 1 < message.length() && message.charAt(at) == '-' && !Character.isDigit(message.charAt(at + 1));
+	}
+	
+	/**
+	 * @param message
+	 * @param end the end of the flag's token
+	 * @param flag
+	 * @return the start of the token after the flag
+	 * @throws IllegalArgumentException if there is no token after the flag
+	 */
+	private static int argumentStart(String message, int end, String flag){
+		if (end >= message.length()){
+			throw new IllegalArgumentException("missing argument for " + flag);
+		}
+		return end + 1;
+	}
+	
+	/**
+	 * Parse the INT from start to end, ignoring a "[" before it and a "]" after it
+	 * 
+	 * @throws IllegalArgumentException if there is no INT there
+	 */
+	private static int readInt(String message, int start, int end, String flag){
+		if (start < end && message.charAt(start) == '['){
+			start++;
+		}
+		if (start < end && message.charAt(end - 1) == ']'){
+			end--;
+		}
+		boolean negative = start < end && message.charAt(start) == '-';
+		int at = negative ? start + 1 : start;
+		if (at == end){
+			throw new IllegalArgumentException("unable to parse number for " + flag);
+		}
+		// accumulate negatively, so that Integer.MIN_VALUE fits
+		int value = 0;
+		for (; at < end; at++){
+			int digit = message.charAt(at) - '0';
+			if (digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10){
+				throw new IllegalArgumentException("unable to parse number for " + flag);
+			}
+			value = value * 10 - digit;
+		}
+		if (!negative){
+			if (value == Integer.MIN_VALUE){
+				throw new IllegalArgumentException("unable to parse number for " + flag);
+			}
+			value = -value;
+		}
+		return value;
 	}
 }
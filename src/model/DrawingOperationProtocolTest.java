@@ -1,10 +1,13 @@
 package model;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 
 import org.junit.Test;
+
 import static org.junit.Assert.*;
 
 /**
@@ -101,4 +104,53 @@ public class DrawingOperationProtocolTest {
 		assertEquals(test.createMessage(), message); //Tests the createMessage method for this DrawingLayer
 	}
 	
+	@Test
+	// Reads a filled oval and a pencil drawing as DrawingOperations, which should hold the same drawing readMessage does.
+	public void readOperationTest(){
+		String message = "drawOval -c [-52480] -w [10] -f -p [185 88 419 442] -i [TestUser]";
+		DrawingOperation test = DrawingOperationProtocol.readOperation(message);
+		assertEquals(test.getColor(), new Color(255,51,0));
+		assertEquals(test.getDrawingID(), "TestUser");
+		assertEquals(test.getDrawingType(), "shapeModeButton");
+		assertEquals(test.getShapeType(), "Oval");
+		assertEquals(test.getShapeFilled(), true);
+		assertEquals(test.getStroke(), new BasicStroke(10,BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND));
+		assertEquals(test.getPointCount(), 2);
+		assertEquals(test.getX(0), 185);
+		assertEquals(test.getY(1), 442);
+		
+		message = "drawLineSegment -c [-16777216] -w [5] -p [339 219 -2 219 340 0] -i [User026]";
+		test = DrawingOperationProtocol.readOperation(message);
+		assertEquals(test.getPointCount(), 3);
+		assertEquals(test.getX(1), -2);
+		assertEquals(test.getY(2), 0);
+		assertEquals(DrawingOperationProtocol.readMessage(message).toOperation().getX(1), -2);
+		assertEquals(DrawingOperationProtocol.readMessage(message).createMessage(), message);
+	}
+	
+	@Test
+	// Draws a blue line on a white board, and checks that its snapshot message reads back as the same picture
+	public void createAndReadSnapshotMessageTest(){
+		BufferedImage board = new BufferedImage(DrawingOperationProtocol.CANVAS_WIDTH, DrawingOperationProtocol.CANVAS_HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = board.createGraphics();
+		DrawingRasterizer.fillWithWhite(g, board.getWidth(), board.getHeight());
+		DrawingRasterizer.draw(DrawingOperationProtocol.readMessage(
+				"drawLineSegment -c [-16776961] -w [20] -p [94 26 732 349] -i [blahblahblah]"), g, board.getWidth(), board.getHeight());
+		g.dispose();
+		
+		String message = DrawingOperationProtocol.createSnapshotMessage(42, board);
+		assertTrue(message.startsWith("boardSnapshot 42 "));
+		BufferedImage test = DrawingOperationProtocol.readSnapshotMessage(message);
+		assertEquals(test.getWidth(), board.getWidth());
+		assertEquals(test.getHeight(), board.getHeight());
+		assertEquals(test.getRGB(94, 26), Color.blue.getRGB());
+		assertEquals(test.getRGB(0, 599), Color.white.getRGB());
+		for (int x = 0; x < board.getWidth(); x += 7){
+			for (int y = 0; y < board.getHeight(); y += 7){
+				assertEquals(test.getRGB(x, y), board.getRGB(x, y));
+			}
+		}
+	}
+	
 }
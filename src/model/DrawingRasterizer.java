@@ -0,0 +1,238 @@
+package model;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Line2D;
+
+import client.ClientEasel;
+
+/**
+ * Draws DrawingLayers onto a Graphics2D, exactly the way a ClientCanvas draws the
+ * drawings it receives from the server onto its buffer. Shared by the ClientCanvas
+ * and by a WhiteboardServer keeping a snapshot of each board, so the two can never
+ * disagree about what a board looks like.
+ *
+ * Needs no display, so it can be used by a headless server.
+ *
+ * @author jlmart88
+ *
+ */
+public class DrawingRasterizer {
+
+	/**
+	 * Draws the drawing onto g, which should be the Graphics of a width x height image
+	 *
+	 * @param drawing the DrawingLayer to draw
+	 * @param g the graphics to draw it on
+	 * @param width the width of the image behind g
+	 * @param height the height of the image behind g
+	 */
+	public static void draw(DrawingLayer drawing, Graphics2D g, int width, int height){
+		draw(drawing.toOperation(), g, width, height);
+	}
+
+	/**
+	 * Draws the drawing onto g, which should be the Graphics of a width x height image
+	 *
+	 * @param drawing the DrawingOperation to draw
+	 * @param g the graphics to draw it on
+	 * @param width the width of the image behind g
+	 * @param height the height of the image behind g
+	 */
+	public static void draw(DrawingOperation drawing, Graphics2D g, int width, int height){
+		g.setStroke(drawing.getStroke());
+		g.setColor(drawing.getColor());
+
+		if (drawing.getDrawingType().equals(ClientEasel.PENCIL_BUTTON) || drawing.getDrawingType().equals(ClientEasel.LINE_BUTTON)){
+			drawSegments(drawing, g);
+		}
+		else if (drawing.getDrawingType().equals(ClientEasel.ERASE_BUTTON)){
+			g.setColor(Color.white);
+			drawSegments(drawing, g);
+		}
+		else if (drawing.getDrawingType().equals(ClientEasel.SHAPE_BUTTON)){
+			// a shape still being dragged out only has its first corner
+			if (drawing.getPointCount() >= 2){
+				drawShape(drawing.getX(0), drawing.getY(0), drawing.getX(1), drawing.getY(1), g,
+						drawing.getShapeType(), drawing.getShapeFilled());
+			}
+		}
+		else {
+			fillWithWhite(g, width, height);
+		}
+	}
+
+	/**
+	 * Draw a line between each of the drawing's points and the next, with g's current
+	 * color and stroke
+	 */
+	private static void drawSegments(DrawingOperation drawing, Graphics2D g){
+		for (int i=0; i<drawing.getPointCount()-1; i++){
+			g.drawLine(drawing.getX(i), drawing.getY(i), drawing.getX(i+1), drawing.getY(i+1));
+		}
+	}
+
+	/**
+	 * Finds the part of a width x height image that drawing the drawing would change
+	 *
+	 * @param drawing the DrawingOperation
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return a Rectangle covering every pixel draw could change, including the
+	 * 		half of the stroke outside the drawing's points
+	 */
+	public static Rectangle getBounds(DrawingOperation drawing, int width, int height){
+		String drawingType = drawing.getDrawingType();
+		if (!(drawingType.equals(ClientEasel.PENCIL_BUTTON) || drawingType.equals(ClientEasel.LINE_BUTTON)
+				|| drawingType.equals(ClientEasel.ERASE_BUTTON) || drawingType.equals(ClientEasel.SHAPE_BUTTON))){
+			// erasing everything
+			return new Rectangle(0, 0, width, height);
+		}
+		if (drawing.getPointCount() == 0){
+			return new Rectangle();
+		}
+		int minX = drawing.getX(0), maxX = minX;
+		int minY = drawing.getY(0), maxY = minY;
+		for (int i=1; i<drawing.getPointCount(); i++){
+			minX = Math.min(minX, drawing.getX(i));
+			maxX = Math.max(maxX, drawing.getX(i));
+			minY = Math.min(minY, drawing.getY(i));
+			maxY = Math.max(maxY, drawing.getY(i));
+		}
+		// a square or circle fits inside the rectangle between its two corners
+		return inflate(minX, minY, maxX, maxY, drawing.getStroke().getLineWidth());
+	}
+
+	/**
+	 * Finds the part of an image that drawing a line, or a shape, between two points
+	 * (x1, y1) and (x2, y2) would change
+	 *
+	 * @param lineWidth the width of the stroke it is drawn with
+	 * @return a Rectangle covering every pixel the line or shape could change
+	 */
+	public static Rectangle getBounds(int x1, int y1, int x2, int y2, float lineWidth){
+		return inflate(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), lineWidth);
+	}
+
+	/**
+	 * @return the rectangle from (minX, minY) to (maxX, maxY), grown on every side by half
+	 * 		of lineWidth, and a pixel for rounding
+	 */
+	private static Rectangle inflate(int minX, int minY, int maxX, int maxY, float lineWidth){
+		int margin = (int) Math.ceil(lineWidth / 2) + 1;
+		return new Rectangle(minX - margin, minY - margin, maxX - minX + 2*margin, maxY - minY + 2*margin);
+	}
+
+	/**
+	 * Make the graphics of a width x height image entirely white.
+	 *
+	 * @param g
+	 * @param width
+	 * @param height
+	 */
+	public static void fillWithWhite(Graphics2D g, int width, int height){
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+	}
+
+	/**
+	 * Draw a shape between two points (x1, y1) and (x2, y2), specified in
+	 * pixels relative to the upper-left corner of the image, with g's current
+	 * color and stroke
+	 *
+	 * @param shapeType one of ClientEasel.RECTANGLE/OVAL/SQUARE/CIRCLE
+	 * @param fillShape whether to fill the shape
+	 */
+	public static void drawShape(int x1, int y1, int x2, int y2, Graphics2D g, String shapeType, boolean fillShape){
+		if (shapeType.equals(ClientEasel.SQUARE) || shapeType.equals(ClientEasel.CIRCLE)){
+			Line2D line = getSquareCoordinates(x1, y1, x2, y2);
+			x1 = (int) line.getX1();
+			x2 = (int) line.getX2();
+			y1 = (int) line.getY1();
+			y2 = (int) line.getY2();
+		}
+
+		int xOrigin = Math.min(x2, x1);
+		int yOrigin = Math.min(y2, y1);
+		int xLength = Math.abs(x2-x1);
+		int yLength = Math.abs(y2-y1);
+
+		if (shapeType.equals(ClientEasel.RECTANGLE) || shapeType.equals(ClientEasel.SQUARE)){
+			if (fillShape){
+				g.fillRect(xOrigin, yOrigin, xLength, yLength);
+			}
+			else {
+				g.drawRect(xOrigin, yOrigin, xLength, yLength);
+			}
+		}
+		else if (shapeType.equals(ClientEasel.OVAL) || shapeType.equals(ClientEasel.CIRCLE)){
+			if (fillShape){
+				g.fillOval(xOrigin, yOrigin, xLength, yLength);
+			}
+			else {
+				g.drawOval(xOrigin, yOrigin, xLength, yLength);
+			}
+		}
+	}
+
+	/**
+	 * Converts two points to represent the diagonal of a square
+	 * (x1,y1) remains as one corner of the square
+	 *
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @return Line2D object representing the x's and y's to use for
+	 * 			drawing a square-like object
+	 */
+	public static Line2D getSquareCoordinates(int x1, int y1, int x2, int y2){
+
+		int xOrigin = Math.min(x2, x1);
+		int yOrigin = Math.min(y2, y1);
+		int xLength = Math.abs(x2-x1);
+		int yLength = Math.abs(y2-y1);
+
+		// make changes to the points to force equal sides
+		if (x2>=x1&&y2>=y1){// 4th quadrant
+			if (xLength<=yLength){
+				yLength = xLength;
+			}
+			else{
+				xLength = yLength;
+			}
+		}
+		else if (x2<x1&&y2>=y1){// 3rd quadrant
+			if (xLength<=yLength){
+				yLength = xLength;
+			}
+			else{
+				xOrigin = x1-yLength;
+				xLength = yLength;
+			}
+		}
+		else if (x2<x1&&y2<y1){// 2nd quadrant
+			if (xLength<=yLength){
+				yOrigin = y1-xLength;
+				yLength = xLength;
+			}
+			else{
+				xOrigin = x1-yLength;
+				xLength = yLength;
+			}
+		}
+		else if (x2>=x1&&y2<y1){// 1st quadrant
+			if (xLength<=yLength){
+				yOrigin = y1-xLength;
+				yLength = xLength;
+			}
+			else{
+				xLength = yLength;
+			}
+		}
+
+		return new Line2D.Float(new Point(xOrigin, yOrigin), new Point(xOrigin+xLength, yOrigin+yLength));
+	}
+}
@@ -0,0 +1,222 @@
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * How messages travel between a client and a WhiteboardServer.
+ *
+ * Every connection starts out with the text protocol: each message in UTF-8, followed by a
+ * newline. Right after the list of boards, the server lists the protocols it speaks:
+ *
+ * PROTOCOLS: "protocols" (SPACE PROTOCOL)+
+ *
+ * A client that speaks one of them may answer with
+ *
+ * USE_PROTOCOL: "useProtocol" SPACE PROTOCOL
+ *
+ * and sends everything after that line in the new protocol. The server sends the same line
+ * back once it has sent everything that was queued before it in text, and everything after
+ * it in the new protocol. A client that never asks, or a server that never offers, keeps
+ * talking text.
+ *
+ * The BINARY_V1 protocol sends messages in frames:
+ *
+ * FRAME: LENGTH KIND PAYLOAD
+ * LENGTH: a varint, the number of bytes in KIND and PAYLOAD
+ * KIND: TEXT_FRAME, whose PAYLOAD is messages in the text protocol, or OPS_FRAME, whose
+ *       PAYLOAD is drawing messages packed by a BinaryOpCodec (one fresh codec per frame)
+ *
+ * @author jlmart88
+ *
+ */
+public class WireProtocol {
+
+	public static final String TEXT = "text";
+	public static final String BINARY_V1 = "binary1";
+	public static final String PROTOCOLS_MESSAGE = "protocols";
+	public static final String USE_PROTOCOL_MESSAGE = "useProtocol";
+
+	public static final int TEXT_FRAME = 0;
+	public static final int OPS_FRAME = 1;
+
+	/**
+	 * The longest frame either side accepts
+	 */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	/**
+	 * @param message
+	 * @return true if message is a drawing operation
+	 */
+	public static boolean isDrawingMessage(String message){
+		for (String operation : DrawingOperationProtocol.DRAWING_MESSAGE_LIST){
+			if (message.startsWith(operation + " ")){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Encode messages in BINARY_V1 frames: every run of drawing messages as an OPS_FRAME, and
+	 * every run of other messages as a TEXT_FRAME.
+	 *
+	 * @param messages messages, without trailing newlines
+	 * @return the frames, one after the other
+	 */
+	public static byte[] encodeFrames(List<String> messages){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int start = 0;
+		while (start < messages.size()){
+			boolean drawings = isDrawingMessage(messages.get(start));
+			int end = start + 1;
+			while (end < messages.size() && isDrawingMessage(messages.get(end)) == drawings){
+				end++;
+			}
+			writeFrame(out, messages.subList(start, end), drawings);
+			start = end;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write a single frame of messages to out.
+	 *
+	 * @param out
+	 * @param messages
+	 * @param drawings whether to write an OPS_FRAME, requires every message to be a drawing if so
+	 */
+	private static void writeFrame(ByteArrayOutputStream out, List<String> messages, boolean drawings){
+		int maxLength = 1;
+		for (String message : messages){
+			maxLength += drawings ? BinaryOpCodec.maxEncodedLength(message) : message.length() * 3 + 1;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(maxLength);
+		if (drawings){
+			payload.put((byte) OPS_FRAME);
+			BinaryOpCodec codec = new BinaryOpCodec();
+			for (String message : messages){
+				codec.encode(message, payload);
+			}
+		}
+		else {
+			payload.put((byte) TEXT_FRAME);
+			for (String message : messages){
+				payload.put(message.getBytes(CHARSET)).put((byte) '\n');
+			}
+		}
+		ByteBuffer length = ByteBuffer.allocate(5);
+		BinaryOpCodec.writeVarint(length, payload.position());
+		out.write(length.array(), 0, length.position());
+		out.write(payload.array(), 0, payload.position());
+	}
+
+	/**
+	 * Add the messages in a frame's KIND and PAYLOAD to messages.
+	 *
+	 * @param frame the frame, without its LENGTH
+	 * @param messages
+	 * @throws IllegalArgumentException if frame is malformed
+	 */
+	public static void decodeFrame(ByteBuffer frame, List<String> messages){
+		int kind = frame.get();
+		if (kind == OPS_FRAME){
+			BinaryOpCodec codec = new BinaryOpCodec();
+			try {
+				while (frame.hasRemaining()){
+					messages.add(codec.decode(frame));
+				}
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("malformed drawing frame", e);
+			}
+		}
+		else if (kind == TEXT_FRAME){
+			String text = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), CHARSET);
+			int start = 0;
+			for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)){
+				messages.add(text.substring(start, end));
+				start = end + 1;
+			}
+		}
+		else {
+			throw new IllegalArgumentException("unknown frame kind " + kind);
+		}
+	}
+
+	/**
+	 * Read a frame from in and add its messages to messages.
+	 *
+	 * @param in
+	 * @param messages
+	 * @return false if in ended before the frame started
+	 * @throws IOException if in fails, ends in the middle of a frame or holds a malformed frame
+	 */
+	public static boolean readFrame(InputStream in, List<String> messages) throws IOException {
+		long length = 0;
+		for (int shift = 0; ; shift += 7){
+			int b = in.read();
+			if (b < 0){
+				if (shift == 0){
+					return false;
+				}
+				throw new EOFException();
+			}
+			length |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0){
+				break;
+			}
+			if (shift > 28){
+				throw new IOException("frame length too long");
+			}
+		}
+		if (length < 1 || length > MAX_FRAME_LENGTH){
+			throw new IOException("bad frame length " + length);
+		}
+		byte[] frame = new byte[(int) length];
+		for (int read = 0; read < frame.length; ){
+			int n = in.read(frame, read, frame.length - read);
+			if (n < 0){
+				throw new EOFException();
+			}
+			read += n;
+		}
+		try {
+			decodeFrame(ByteBuffer.wrap(frame), messages);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+		return true;
+	}
+
+	/**
+	 * Read a line of the text protocol from in, without reading past its newline.
+	 *
+	 * @param in
+	 * @return the line, without its newline (or carriage return), or null if in has ended
+	 * @throws IOException
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != '\n'){
+			if (b < 0){
+				if (line.size() == 0){
+					return null;
+				}
+				break;
+			}
+			line.write(b);
+		}
+		String s = new String(line.toByteArray(), CHARSET);
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+}
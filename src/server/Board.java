@@ -0,0 +1,543 @@
+package server;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import model.DrawingOperationProtocol;
+import model.DrawingRasterizer;
+
+/**
+ * A single whiteboard on a WhiteboardServer: its transcript (the list of
+ * drawing messages that construct it, replayed to every client that joins,
+ * kept packed in a Transcript)
+ * and its members (the connections currently on it, with the username the
+ * board knows each by).
+ *
+ * Presence is live state rather than history: a joining client is sent the
+ * whole roster as one "currentUsers" message, and only changes to it
+ * (userJoined/userQuit) are broadcast afterwards. None of these are added to
+ * the transcript.
+ *
+ * A long transcript is replayed as a snapshot instead: a picture of the board
+ * with every drawing in the transcript drawn on it, the same way ClientCanvas
+ * draws them. The picture is only brought up to date when a snapshot is
+ * needed, and the encoded snapshot is reused until the board changes.
+ *
+ * If the server keeps a BoardLog, every drawing added to the transcript is
+ * also handed to the log, after it has been queued for the members. The
+ * transcript starts out as whatever is already in the log, read the first
+ * time the board needs it rather than when the board is created. A board
+ * with nobody on it can be paged out by a BoardPager, dropping its transcript
+ * until it is next used.
+ *
+ * Concurrency Argument:
+ * Every Board is an actor. Its transcript and members are confined to the
+ * Board's mailbox, a SerialExecutor, and only touched by tasks run through
+ * execute(). Messages on one board are therefore added to the transcript and
+ * queued for every subscriber in a single order, while different boards run
+ * in parallel on the shared pool and never wait on each other.
+ *
+ * @author ankush
+ *
+ */
+class Board {
+
+    /**
+     * The size of the frames a board's transcript is replayed in
+     */
+    private static final int REPLAY_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The transcript size beyond which a snapshot is replayed instead, roughly
+     * what a snapshot of a busy board costs
+     */
+    private static final long SNAPSHOT_THRESHOLD = 128 * 1024;
+
+    private final String id;
+    private final boolean debug;
+    private final SerialExecutor mailbox;
+    private final BoardLog log;
+    private final BoardPager pager;
+    private boolean loaded;
+
+    // for the pager, which reads them from its own thread
+    private volatile long residentBytes = 0;
+    private volatile long lastUsed = System.nanoTime();
+    private volatile int memberCount = 0;
+    private final Transcript transcript = new Transcript();
+
+    /**
+     * The number of drawings ever announced on this board
+     */
+    private long sequence = 0;
+
+    // the picture of the first pictureLength messages in the transcript, and
+    // the last snapshot of it, made at snapshotSequence; all created lazily
+    private BufferedImage picture;
+    private int pictureLength = 0;
+    private Frame snapshot;
+    private long snapshotSequence = -1;
+    private final Map<ClientConnection, String> members = new LinkedHashMap<ClientConnection, String>();
+
+    /**
+     * Make an empty Board.
+     *
+     * @param id
+     *            the board's name
+     * @param pool
+     *            the executor whose threads run the board's tasks
+     * @param debug
+     *            whether to report how long each join's replay takes
+     * @param log
+     *            where to keep the board's drawings on disk, or null not to
+     * @param pager
+     *            the pager counting joins to the board, or null if there is
+     *            none
+     */
+    Board(String id, Executor pool, boolean debug, BoardLog log, BoardPager pager) {
+        this.id = id;
+        this.debug = debug;
+        this.mailbox = new SerialExecutor(pool);
+        this.log = log;
+        this.pager = pager;
+        this.loaded = log == null;
+    }
+
+    /**
+     * @return the board's name
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Run task on this board's actor, after every task submitted to it before.
+     * Threadsafe, never blocks. Every other method (except getId and the
+     * mailbox metrics) may only be called from such a task.
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        mailbox.execute(task);
+    }
+
+    /**
+     * Announce message on this board's actor. Threadsafe, never blocks.
+     *
+     * @param message
+     */
+    void post(final String message) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                announce(message);
+            }
+        });
+    }
+
+    /**
+     * @return the number of tasks waiting in (or running from) this board's
+     *         mailbox
+     */
+    int getMailboxDepth() {
+        return mailbox.getDepth();
+    }
+
+    /**
+     * @return the deepest this board's mailbox has been since the last call
+     */
+    int takeMaxMailboxDepth() {
+        return mailbox.takeMaxDepth();
+    }
+
+    /**
+     * @return roughly how many bytes of memory the board's transcript,
+     *         picture and snapshot take; 0 while the board is paged out
+     */
+    long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return System.nanoTime() when someone last joined or drew on the board
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return true if the board could be paged out: it has a log and, as of
+     *         its latest task, nobody on it
+     */
+    boolean canPageOut() {
+        return log != null && memberCount == 0;
+    }
+
+    /**
+     * Recompute residentBytes, which is 0 while the board is paged out.
+     */
+    private void updateResidentBytes() {
+        if (!loaded) {
+            residentBytes = 0;
+            return;
+        }
+        long bytes = transcript.getMemoryBytes();
+        if (picture != null) {
+            bytes += (long) picture.getWidth() * picture.getHeight() * 4;
+        }
+        if (snapshot != null) {
+            bytes += snapshot.size();
+        }
+        residentBytes = bytes;
+    }
+
+    /**
+     * Page the board out, if it can be and is still unused once everything
+     * drawn on it has been written to its log. Threadsafe, never blocks.
+     *
+     * @param pager
+     *            the pager to count the eviction with
+     */
+    void pageOut(final BoardPager pager) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!loaded || log == null || !members.isEmpty()) {
+                    return;
+                }
+                final long at = sequence;
+                log.whenWritten(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (loaded && members.isEmpty() && sequence == at) {
+                                    long freed = residentBytes;
+                                    unload();
+                                    pager.recordEviction(Board.this, freed);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drop the transcript, picture and snapshot, and let the log close the
+     * board's file; they are read back from the log the next time they are
+     * needed.
+     */
+    private void unload() {
+        log.release(id);
+        transcript.clear();
+        picture = null;
+        pictureLength = 0;
+        snapshot = null;
+        snapshotSequence = -1;
+        loaded = false;
+        updateResidentBytes();
+    }
+
+    /**
+     * @return the frames that bring a client that has just cleared its canvas
+     *         up to date with this board: the transcript, in frames of about
+     *         REPLAY_CHUNK_SIZE bytes, or a snapshot if the transcript is
+     *         longer than SNAPSHOT_THRESHOLD
+     */
+    List<Frame> getHistory() {
+        load();
+        if (transcript.getTextLength() <= SNAPSHOT_THRESHOLD) {
+            List<Frame> chunks = Frame.chunks(transcript, REPLAY_CHUNK_SIZE);
+            for (int i = 0; i < chunks.size(); i++) {
+                chunks.set(i, chunks.get(i).forBoard());
+            }
+            return chunks;
+        }
+        if (snapshotSequence != sequence) {
+            snapshot = Frame.of(DrawingOperationProtocol.createSnapshotMessage(sequence, drawPicture())).forBoard();
+            snapshotSequence = sequence;
+            updateResidentBytes();
+        }
+        // a new list, since timeReplay may replace its frames
+        return new ArrayList<Frame>(Collections.singletonList(snapshot));
+    }
+
+    /**
+     * Bring the picture up to date with the transcript.
+     * 
+     * @return the picture
+     */
+    private BufferedImage drawPicture() {
+        int width = DrawingOperationProtocol.CANVAS_WIDTH;
+        int height = DrawingOperationProtocol.CANVAS_HEIGHT;
+        if (picture == null) {
+            picture = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pictureLength = 0;
+        }
+        Graphics2D g = picture.createGraphics();
+        try {
+            if (pictureLength == 0) {
+                DrawingRasterizer.fillWithWhite(g, width, height);
+            }
+            Iterator<String> drawings = transcript.iterator(pictureLength);
+            for (; drawings.hasNext(); pictureLength++) {
+                try {
+                    DrawingRasterizer.draw(DrawingOperationProtocol.readOperation(drawings.next()), g, width, height);
+                } catch (RuntimeException e) {
+                    // a malformed drawing; clients can't draw it either
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return picture;
+    }
+
+    /**
+     * @return the message listing every member of the board, in the order
+     *         they joined
+     */
+    String getRoster() {
+        StringBuilder sb = new StringBuilder("currentUsers");
+        for (String username : members.values()) {
+            sb.append(' ').append(username);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param connection
+     * @return true if connection is on this board
+     */
+    boolean isMember(ClientConnection connection) {
+        return members.containsKey(connection);
+    }
+
+    /**
+     * Send message to everyone on the board, and if it is a drawing, add it to
+     * the transcript.
+     * 
+     * An eraseAll wipes out every drawing before it, so the transcript is
+     * emptied and then starts at the latest wipe.
+     *
+     * @param message
+     */
+    void announce(String message) {
+        boolean drawing = isDrawing(message);
+        if (drawing) {
+            lastUsed = System.nanoTime();
+            load();
+            record(message);
+            updateResidentBytes();
+        }
+        broadcast(message);
+        if (drawing && log != null) {
+            log.append(id, message);
+        }
+    }
+
+    /**
+     * The first time it is called, start the transcript with the drawings
+     * already in the board's log. If the log can't be read, the board starts
+     * empty and the log is left as it is.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        List<String> drawings;
+        try {
+            drawings = log.read(id);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (String message : drawings) {
+            if (isDrawing(message)) {
+                record(message);
+            }
+        }
+        updateResidentBytes();
+    }
+
+    /**
+     * Add a drawing to the transcript. An eraseAll empties it first.
+     *
+     * @param message
+     *            a drawing message
+     */
+    private void record(String message) {
+        if (message.startsWith(DrawingOperationProtocol.ERASE_ALL_MESSAGE + " ")) {
+            // gives back the memory the dropped drawings were using
+            transcript.clear();
+            pictureLength = 0;
+        }
+        transcript.add(message);
+        sequence++;
+    }
+
+    /**
+     * @param message
+     * @return true if message is a drawing operation
+     */
+    private static boolean isDrawing(String message) {
+        for (String operation : DrawingOperationProtocol.DRAWING_MESSAGE_LIST) {
+            if (message.startsWith(operation + " ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send message to everyone on the board without adding it to the
+     * transcript.
+     *
+     * @param message
+     */
+    private void broadcast(String message) {
+        // encoded once, whatever the number of members
+        Frame frame = Frame.of(message).forBoard();
+        for (ClientConnection c : members.keySet()) {
+            c.sendFrame(frame);
+        }
+    }
+
+    /**
+     * Tell everyone already on the board that username has joined, then add
+     * connection to the board and send it its greeting, the roster and the
+     * board's history (see getHistory). A transcript is sent in frames of
+     * about REPLAY_CHUNK_SIZE bytes, so that a long one is written in a few
+     * large writes without being encoded into one huge buffer.
+     * 
+     * In debug mode, reports how long the client took to get its first chunk
+     * of the history (when it can start painting) and the whole history (when
+     * it is fully hydrated).
+     *
+     * @param connection
+     *            the connection joining the board
+     * @param username
+     *            the username of connection's client
+     * @param greeting
+     *            the message sent to the connection before the roster
+     */
+    void join(ClientConnection connection, String username, String greeting) {
+        broadcast("userJoined " + username);
+        members.put(connection, username);
+        memberCount = members.size();
+        lastUsed = System.nanoTime();
+        if (pager != null) {
+            pager.recordJoin(loaded);
+        }
+        connection.sendFrame(Frame.of(greeting).forBoard());
+        connection.sendFrame(Frame.of(getRoster()).forBoard());
+        long start = System.nanoTime();
+        List<Frame> chunks = getHistory();
+        if (debug && !chunks.isEmpty()) {
+            timeReplay(connection, chunks, start);
+        }
+        for (Frame chunk : chunks) {
+            connection.sendFrame(chunk);
+        }
+    }
+
+    /**
+     * Make the first and last of chunks report when they are written.
+     * 
+     * @param connection
+     *            the connection the chunks will be sent to
+     * @param chunks
+     *            the history, in frames, requires !chunks.isEmpty()
+     * @param start
+     *            System.nanoTime() when the join started preparing chunks
+     */
+    private void timeReplay(final ClientConnection connection, List<Frame> chunks, final long start) {
+        final int messages = transcript.size();
+        long bytes = 0;
+        for (Frame chunk : chunks) {
+            bytes += chunk.size();
+        }
+        final long totalBytes = bytes;
+        final long[] firstWritten = new long[1];
+        // both callbacks run on the connection's writer, in order
+        chunks.set(0, chunks.get(0).whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                firstWritten[0] = System.nanoTime();
+            }
+        }));
+        final int last = chunks.size() - 1;
+        chunks.set(last, chunks.get(last).whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                long end = System.nanoTime();
+                long first = last == 0 ? end : firstWritten[0];
+                System.err.println(String.format(
+                        "Replayed board %s to %s: %d messages, %d bytes; first chunk after %d ms, all after %d ms",
+                        id, connection.getClient(), messages, totalBytes,
+                        TimeUnit.NANOSECONDS.toMillis(first - start), TimeUnit.NANOSECONDS.toMillis(end - start)));
+            }
+        }));
+    }
+
+    /**
+     * If connection is on the board, tell everyone on the board (including
+     * connection) that it has left, then take connection off the board.
+     *
+     * @param connection
+     *            the connection leaving the board
+     */
+    void leave(ClientConnection connection) {
+        String username = members.get(connection);
+        if (username == null) {
+            return;
+        }
+        broadcast("userQuit " + username);
+        members.remove(connection);
+        memberCount = members.size();
+    }
+
+    /**
+     * If connection is on the board, tell everyone on the board that its
+     * client is now called newName.
+     *
+     * @param connection
+     *            the renamed connection
+     * @param newName
+     *            its client's new username
+     */
+    void rename(ClientConnection connection, String newName) {
+        String oldName = members.get(connection);
+        if (oldName == null) {
+            return;
+        }
+        broadcast("userQuit " + oldName);
+        members.put(connection, newName);
+        broadcast("userJoined " + newName);
+    }
+
+    /**
+     * Add connection to the board without telling anyone.
+     *
+     * @param connection
+     * @param username
+     *            the username of connection's client
+     */
+    void subscribe(ClientConnection connection, String username) {
+        members.put(connection, username);
+        memberCount = members.size();
+    }
+}
@@ -0,0 +1,442 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import model.DrawingOperationProtocol;
+
+/**
+ * The on-disk copy of every board's transcript: one append-only file per
+ * board, in a data directory, holding the board's drawing messages as
+ * records, each a 4-byte big-endian length followed by that many bytes of the
+ * message in UTF-8. A server started on the same directory recovers its
+ * boards from these files.
+ *
+ * Recovery is lazy. At startup the server only lists which boards have a
+ * log; a board's log is read (through a memory-mapped buffer, without
+ * parsing any message) the first time the board is used, so startup takes
+ * the same time however much has been drawn.
+ *
+ * Like a transcript, a board's log starts at its latest eraseAll: the file is
+ * truncated before the eraseAll is written, so logs never grow past what a
+ * board actually shows.
+ *
+ * Boards hand their drawings to append(), which only queues them. A single
+ * writer thread takes everything queued so far as one batch, writes each
+ * board's share of it with one write, and then forces the files to disk
+ * according to the FsyncPolicy. Forcing once per batch is a group commit:
+ * under load one fsync covers many drawings.
+ *
+ * The writer keeps at most MAX_OPEN_FILES logs open, closing the least
+ * recently written one to make room, and closes a board's log as soon as the
+ * board is paged out (see release), so a server with many boards doesn't run
+ * out of file descriptors.
+ *
+ * Concurrency Argument:
+ * append() only adds to a BlockingQueue, so it is threadsafe and never waits
+ * on the disk. The files and everything about them are confined to the
+ * writer thread. Each board appends from its own actor, so each board's
+ * drawings reach the queue, and therefore its file, in transcript order.
+ *
+ * @author ankush
+ *
+ */
+final class BoardLog {
+
+    /**
+     * When a board's log is forced to disk. NONE leaves it to the operating
+     * system, so a machine crash may lose recent drawings (a server crash
+     * loses only what hadn't been written yet). INTERVAL forces at most every
+     * FSYNC_INTERVAL_MILLIS. EVERY_OP forces after every batch, before any
+     * later drawing is written.
+     */
+    enum FsyncPolicy {
+        NONE, INTERVAL, EVERY_OP
+    }
+
+    /**
+     * How often the INTERVAL policy forces the logs to disk
+     */
+    static final long FSYNC_INTERVAL_MILLIS = 1000;
+
+    private static final String SUFFIX = ".log";
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /**
+     * The most drawings written as one batch
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * How long a shutting-down server waits for the log to be written
+     */
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    /**
+     * The most logs the writer keeps open at once
+     */
+    static final int MAX_OPEN_FILES = 64;
+
+    /**
+     * A drawing waiting to be written to boardId's log, a callback (if message
+     * is null) waiting for every drawing before it to be written, or (if both
+     * are null) a request to close boardId's log
+     */
+    private static final class Entry {
+        final String boardId;
+        final String message;
+        final Runnable callback;
+
+        Entry(String boardId, String message, Runnable callback) {
+            this.boardId = boardId;
+            this.message = message;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Queued to stop the writer once everything before it is on disk.
+     * Compared by identity.
+     */
+    private final Entry closeSignal = new Entry(null, null, null);
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final File directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<Entry>();
+
+    // confined to the writer thread; the open logs, least recently written first
+    private final Map<String, FileChannel> files = new LinkedHashMap<String, FileChannel>(16, 0.75f, true);
+    private final Set<FileChannel> unsynced = new LinkedHashSet<FileChannel>();
+    private long lastSync = System.nanoTime();
+
+    /**
+     * Make a BoardLog keeping its files in directory, creating the directory
+     * if it does not exist. Nothing is written until start() is called.
+     *
+     * @param directory
+     * @param fsyncPolicy
+     *            when to force the logs to disk
+     * @throws IOException
+     *             if directory can't be created
+     */
+    BoardLog(File directory, FsyncPolicy fsyncPolicy) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create data directory " + directory);
+        }
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * @return the name of every board with a log, in order
+     * @throws IOException
+     *             if the data directory can't be listed
+     */
+    List<String> getBoardIds() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("unable to list data directory " + directory);
+        }
+        Arrays.sort(names);
+        List<String> boardIds = new ArrayList<String>();
+        for (String name : names) {
+            if (name.endsWith(SUFFIX)) {
+                String boardId = name.substring(0, name.length() - SUFFIX.length());
+                if (boardId.matches("[a-zA-Z0-9_]+")) {
+                    boardIds.add(boardId);
+                }
+            }
+        }
+        return boardIds;
+    }
+
+    /**
+     * Read boardId's log. A drawing that was only partly written when the
+     * server stopped is dropped, and cut off the end of the file. Must not be
+     * called while anything appended to boardId's log is still waiting to be
+     * written (see whenWritten).
+     *
+     * @param boardId
+     * @return the drawings in boardId's log, in order; empty if it has none
+     * @throws IOException
+     */
+    List<String> read(String boardId) throws IOException {
+        File log = new File(directory, boardId + SUFFIX);
+        if (!log.exists()) {
+            return Collections.emptyList();
+        }
+        List<String> drawings = new ArrayList<String>();
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            long size = file.length();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("board log too large to map: " + log);
+            }
+            MappedByteBuffer records = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] bytes = new byte[256];
+            int end = 0;
+            try {
+                while (records.hasRemaining()) {
+                    int length = records.getInt();
+                    if (length < 0 || length > records.remaining()) {
+                        break;
+                    }
+                    if (length > bytes.length) {
+                        bytes = new byte[Math.max(length, bytes.length * 2)];
+                    }
+                    records.get(bytes, 0, length);
+                    drawings.add(new String(bytes, 0, length, CHARSET));
+                    end = records.position();
+                }
+            } catch (BufferUnderflowException e) {
+                // a length cut short
+            }
+            if (end < size) {
+                file.setLength(end);
+            }
+        }
+        return drawings;
+    }
+
+    /**
+     * Start the writer thread, and make sure everything appended is written
+     * (and forced to disk) when the JVM shuts down.
+     */
+    void start() {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeUntilClosed();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "whiteboard-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pending.add(closeSignal);
+                try {
+                    closed.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "whiteboard-log-close"));
+    }
+
+    /**
+     * Queue message to be written to boardId's log. Threadsafe, never blocks.
+     *
+     * @param boardId
+     *            the board message was announced on
+     * @param message
+     *            a drawing message
+     */
+    void append(String boardId, String message) {
+        pending.add(new Entry(boardId, message, null));
+    }
+
+    /**
+     * Run callback on the writer thread once everything appended before now
+     * has been written (though not necessarily forced to disk), so that
+     * read() would return it. Threadsafe, never blocks.
+     *
+     * @param callback
+     */
+    void whenWritten(Runnable callback) {
+        pending.add(new Entry(null, null, callback));
+    }
+
+    /**
+     * Close boardId's log once everything appended to it before now has been
+     * written (and, unless the FsyncPolicy is NONE, forced to disk). Anything
+     * appended afterwards opens it again. Threadsafe, never blocks.
+     *
+     * @param boardId
+     */
+    void release(String boardId) {
+        pending.add(new Entry(boardId, null, null));
+    }
+
+    /**
+     * Write batches until the close signal is taken.
+     *
+     * @throws InterruptedException
+     */
+    private void writeUntilClosed() throws InterruptedException {
+        List<Entry> batch = new ArrayList<Entry>();
+        while (true) {
+            Entry first;
+            if (fsyncPolicy == FsyncPolicy.INTERVAL && !unsynced.isEmpty()) {
+                long untilSync = TimeUnit.MILLISECONDS.toNanos(FSYNC_INTERVAL_MILLIS)
+                        - (System.nanoTime() - lastSync);
+                first = pending.poll(Math.max(untilSync, 0), TimeUnit.NANOSECONDS);
+            } else {
+                first = pending.take();
+            }
+            if (first == null) {
+                sync();
+                continue;
+            }
+            batch.add(first);
+            pending.drainTo(batch, BATCH_SIZE - 1);
+            boolean closing = batch.remove(closeSignal);
+            write(batch);
+            for (Entry entry : batch) {
+                if (entry.callback != null) {
+                    entry.callback.run();
+                } else if (entry.message == null) {
+                    close(files.remove(entry.boardId));
+                }
+            }
+            batch.clear();
+            if (closing || fsyncPolicy == FsyncPolicy.EVERY_OP) {
+                sync();
+            } else if (fsyncPolicy == FsyncPolicy.INTERVAL
+                    && System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(FSYNC_INTERVAL_MILLIS)) {
+                sync();
+            }
+            if (closing) {
+                closed.countDown();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write batch to the boards' logs, with one write per board.
+     *
+     * @param batch
+     */
+    private void write(List<Entry> batch) {
+        Map<String, ByteArrayOutputStream> records = new LinkedHashMap<String, ByteArrayOutputStream>();
+        Set<String> erased = new LinkedHashSet<String>();
+        for (Entry entry : batch) {
+            if (entry.message == null) {
+                continue;
+            }
+            ByteArrayOutputStream out = records.get(entry.boardId);
+            if (out == null) {
+                out = new ByteArrayOutputStream();
+                records.put(entry.boardId, out);
+            }
+            if (entry.message.startsWith(DrawingOperationProtocol.ERASE_ALL_MESSAGE + " ")) {
+                // nothing before it matters any more, on disk either
+                out.reset();
+                erased.add(entry.boardId);
+            }
+            byte[] bytes = entry.message.getBytes(CHARSET);
+            int length = bytes.length;
+            out.write(length >>> 24);
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(bytes, 0, length);
+        }
+        for (Map.Entry<String, ByteArrayOutputStream> boardRecords : records.entrySet()) {
+            String boardId = boardRecords.getKey();
+            try {
+                FileChannel file = getFile(boardId);
+                if (erased.contains(boardId)) {
+                    file.truncate(0);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(boardRecords.getValue().toByteArray());
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+                unsynced.add(file);
+            } catch (IOException e) {
+                e.printStackTrace(); // but keep logging the other boards
+            }
+        }
+    }
+
+    /**
+     * @param boardId
+     * @return boardId's log, opened for appending
+     * @throws IOException
+     */
+    private FileChannel getFile(String boardId) throws IOException {
+        FileChannel file = files.get(boardId);
+        if (file == null) {
+            if (files.size() >= MAX_OPEN_FILES) {
+                Iterator<FileChannel> eldest = files.values().iterator();
+                close(eldest.next());
+                eldest.remove();
+            }
+            file = new FileOutputStream(new File(directory, boardId + SUFFIX), true).getChannel();
+            files.put(boardId, file);
+        }
+        return file;
+    }
+
+    /**
+     * Close a log, first forcing it to disk if it has been written since the
+     * last sync and the FsyncPolicy forces logs at all.
+     *
+     * @param file
+     *            an open log, or null to do nothing
+     */
+    private void close(FileChannel file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            if (unsynced.remove(file) && fsyncPolicy != FsyncPolicy.NONE) {
+                file.force(false);
+            }
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of logs the writer has open; may only be called on
+     *         the writer thread, e.g. from a whenWritten callback
+     */
+    int getOpenFileCount() {
+        return files.size();
+    }
+
+    /**
+     * Force every log written since the last sync to disk.
+     */
+    private void sync() {
+        for (FileChannel file : unsynced) {
+            try {
+                file.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        unsynced.clear();
+        lastSync = System.nanoTime();
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for BoardLog: that what is appended is read back in order, that a
+ * record only partly written when the server stopped is dropped and cut off
+ * the end of the file, and that an eraseAll truncates the log to itself.
+ *
+ * @author ankush
+ *
+ */
+public class BoardLogTest {
+
+    private static final List<String> DRAWINGS = Arrays.asList(
+            "drawLineSegment -c [-16776961] -w [20] -p [94 26 732 349] -i [User01]",
+            "drawRectangle -c [-16777216] -w [5] -p [114 72 228 186] -i [User02]",
+            "drawOval -c [-16777216] -w [5] -f -p [114 72 228 186] -i [User03]");
+
+    /**
+     * Append drawings to boardId's log and wait for them to be written.
+     */
+    private static void appendAll(BoardLog log, String boardId, List<String> drawings) throws InterruptedException {
+        for (String drawing : drawings) {
+            log.append(boardId, drawing);
+        }
+        final CountDownLatch written = new CountDownLatch(1);
+        log.whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void tornTailTest() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("boardlog").toFile();
+        BoardLog log = new BoardLog(directory, BoardLog.FsyncPolicy.NONE);
+        log.start();
+        appendAll(log, "torn", DRAWINGS);
+        File file = new File(directory, "torn.log");
+        long complete = file.length();
+
+        // a record whose length says 100 bytes, but only 3 made it to disk
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] { 0, 0, 0, 100, 'd', 'r', 'a' });
+        }
+        assertEquals(DRAWINGS, log.read("torn"));
+        assertEquals(complete, file.length());
+
+        // and one cut off in the middle of its length
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] { 0, 0 });
+        }
+        assertEquals(DRAWINGS, log.read("torn"));
+        assertEquals(complete, file.length());
+
+        // later drawings follow the last complete record
+        appendAll(log, "torn", DRAWINGS.subList(0, 1));
+        List<String> expected = new ArrayList<String>(DRAWINGS);
+        expected.add(DRAWINGS.get(0));
+        assertEquals(expected, log.read("torn"));
+
+        assertEquals(Collections.singletonList("torn"), log.getBoardIds());
+        assertEquals(Collections.emptyList(), log.read("missing"));
+    }
+
+    @Test
+    public void eraseAllTest() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("boardlog").toFile();
+        BoardLog log = new BoardLog(directory, BoardLog.FsyncPolicy.EVERY_OP);
+        log.start();
+        appendAll(log, "erased", DRAWINGS);
+
+        String eraseAll = "eraseAll -i [User04]";
+        appendAll(log, "erased", Arrays.asList(eraseAll, DRAWINGS.get(0)));
+        assertEquals(Arrays.asList(eraseAll, DRAWINGS.get(0)), log.read("erased"));
+
+        appendAll(log, "erased", Collections.singletonList(eraseAll));
+        assertEquals(Collections.singletonList(eraseAll), log.read("erased"));
+        assertEquals(4 + eraseAll.length(), new File(directory, "erased.log").length());
+    }
+}
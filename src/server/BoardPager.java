@@ -0,0 +1,159 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the transcripts boards hold in memory under a budget, by paging out
+ * the boards that have gone longest without being used once they are empty.
+ * A paged-out board has its transcript (and its picture) dropped, and reads
+ * it back from its BoardLog the next time it is used, e.g. when a client
+ * changes to it. Only boards with a log can be paged out.
+ *
+ * Also counts, for every join, whether the board's transcript was already in
+ * memory (a hit) or had to be read back (a miss), and how many boards have
+ * been paged out.
+ *
+ * Concurrency Argument:
+ * The pager only reads each board's volatile memory estimate and last use
+ * time; the paging out itself is a task on the board's actor, which checks
+ * again that the board is still unused before dropping anything. The
+ * counters are atomic.
+ *
+ * @author ankush
+ *
+ */
+final class BoardPager {
+
+    /**
+     * How often the pager checks the boards against its budget
+     */
+    private static final long CHECK_SECONDS = 1;
+
+    private final Collection<Board> boards;
+    private final long budget;
+    private final boolean debug;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * Make a BoardPager.
+     *
+     * @param boards
+     *            a live view of every board on the server
+     * @param budget
+     *            the bytes boards may hold in memory before idle ones are
+     *            paged out, requires budget > 0
+     * @param debug
+     *            whether to report every board paged out
+     */
+    BoardPager(Collection<Board> boards, long budget, boolean debug) {
+        this.boards = boards;
+        this.budget = budget;
+        this.debug = debug;
+    }
+
+    /**
+     * Start checking the boards against the budget every CHECK_SECONDS.
+     */
+    void start() {
+        Thread pager = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(CHECK_SECONDS));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    check();
+                }
+            }
+        }, "whiteboard-board-pager");
+        pager.setDaemon(true);
+        pager.start();
+    }
+
+    /**
+     * If the boards hold more than the budget, ask the least recently used
+     * boards to page out until they would hold no more than the budget.
+     */
+    void check() {
+        long total = 0;
+        List<Board> resident = new ArrayList<Board>();
+        for (Board board : boards) {
+            long bytes = board.getResidentBytes();
+            if (bytes > 0) {
+                total += bytes;
+                resident.add(board);
+            }
+        }
+        if (total <= budget) {
+            return;
+        }
+        final List<Long> lastUsed = new ArrayList<Long>(resident.size());
+        for (Board board : resident) {
+            lastUsed.add(board.getLastUsed());
+        }
+        List<Integer> order = new ArrayList<Integer>(resident.size());
+        for (int i = 0; i < resident.size(); i++) {
+            order.add(i);
+        }
+        // read once, since boards keep being used while we sort
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastUsed.get(a), lastUsed.get(b));
+            }
+        });
+        for (int i : order) {
+            if (total <= budget) {
+                break;
+            }
+            Board board = resident.get(i);
+            if (!board.canPageOut()) {
+                continue;
+            }
+            total -= board.getResidentBytes();
+            board.pageOut(this);
+        }
+    }
+
+    /**
+     * Count a join to a board.
+     *
+     * @param resident
+     *            whether the board's transcript was in memory
+     */
+    void recordJoin(boolean resident) {
+        (resident ? hits : misses).incrementAndGet();
+    }
+
+    /**
+     * Count a board paged out, reporting it in debug mode.
+     *
+     * @param board
+     * @param bytes
+     *            roughly how much memory paging out the board freed
+     */
+    void recordEviction(Board board, long bytes) {
+        evictions.incrementAndGet();
+        if (debug) {
+            System.err.println(String.format("Paged out board %s (%d bytes); %s", board.getId(), bytes, report()));
+        }
+    }
+
+    /**
+     * @return a line with the hit, miss and eviction counts so far
+     */
+    String report() {
+        return String.format("board hits=%d, misses=%d, evictions=%d", hits.get(), misses.get(), evictions.get());
+    }
+}
@@ -0,0 +1,248 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import model.Client;
+
+/**
+ * Tests for BoardPager: a board paged out under a small memory budget drops
+ * its transcript and closes its log, and a client rejoining it is replayed
+ * exactly the history it was replayed before, read back from the log. The
+ * pager counts the first join to a board not in memory as a miss, a join to
+ * a board in memory as a hit, and the page out as an eviction. Paged-out
+ * boards count for nothing against the budget, so once every board is paged
+ * out the pager leaves them alone.
+ *
+ * @author ankush
+ *
+ */
+public class BoardPagerTest {
+
+    /**
+     * A connection that keeps the text of every frame sent to it
+     */
+    private static class RecordingConnection implements ClientConnection {
+        private final Client client = new Client(WhiteboardServer.NO_BOARD);
+        private final StringBuilder received = new StringBuilder();
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
+        @Override
+        public synchronized void sendFrame(Frame frame) {
+            byte[] bytes = new byte[frame.size()];
+            frame.asBuffer(false).get(bytes);
+            received.append(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void sendMessage(String message) {
+            sendFrame(Frame.of(message));
+        }
+
+        @Override
+        public void resync(List<Frame> frames) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void useBinaryProtocol() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void disconnect() {
+            throw new UnsupportedOperationException();
+        }
+
+        private synchronized String takeReceived() {
+            String text = received.toString();
+            received.setLength(0);
+            return text;
+        }
+    }
+
+    /**
+     * Run task on board's actor, and wait for it.
+     */
+    private static void runOn(Board board, final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        board.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Wait until everything board's actor has been asked to do is done.
+     */
+    private static void await(Board board) throws InterruptedException {
+        runOn(board, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    /**
+     * Wait until every board has been paged out, if it was asked to be, once
+     * its drawings are in log.
+     */
+    private static void awaitPageOut(List<Board> boards, final BoardLog log) throws InterruptedException {
+        for (Board board : boards) {
+            await(board);
+        }
+        final CountDownLatch written = new CountDownLatch(1);
+        log.whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        for (Board board : boards) {
+            await(board);
+        }
+    }
+
+    /**
+     * Join connection to board, leave again, and return what it was sent.
+     */
+    private static String visit(final Board board, final RecordingConnection connection) throws InterruptedException {
+        runOn(board, new Runnable() {
+            @Override
+            public void run() {
+                board.join(connection, "visitor", "boardChanged default paged");
+                board.leave(connection);
+            }
+        });
+        return connection.takeReceived();
+    }
+
+    @Test
+    public void pageOutAndInTest() throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        final BoardLog log = new BoardLog(Files.createTempDirectory("boardpager").toFile(),
+                BoardLog.FsyncPolicy.NONE);
+        log.start();
+        List<Board> boards = new ArrayList<Board>();
+        BoardPager pager = new BoardPager(Collections.unmodifiableList(boards), 1, false);
+        final Board board = new Board("paged", pool, false, log, pager);
+        boards.add(board);
+        RecordingConnection connection = new RecordingConnection();
+
+        visit(board, connection);
+        assertEquals("board hits=0, misses=1, evictions=0", pager.report());
+        for (int i = 0; i < 10; i++) {
+            board.post("drawLineSegment -c [-16776961] -w [5] -p [" + i + " 2 3 4] -i [User0" + i + "]");
+        }
+        String history = visit(board, connection);
+        assertTrue(history.contains("-i [User09]"));
+        assertEquals("board hits=1, misses=1, evictions=0", pager.report());
+        long resident = board.getResidentBytes();
+
+        // the board pages out once its drawings are in the log
+        pager.check();
+        final CountDownLatch pagedOut = new CountDownLatch(1);
+        board.execute(new Runnable() {
+            @Override
+            public void run() {
+                log.whenWritten(new Runnable() {
+                    @Override
+                    public void run() {
+                        board.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                pagedOut.countDown();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+        assertTrue(pagedOut.await(5, TimeUnit.SECONDS));
+        assertEquals("board hits=1, misses=1, evictions=1", pager.report());
+        assertEquals(0, board.getResidentBytes());
+
+        // and its log is closed
+        final int[] openFiles = { -1 };
+        final CountDownLatch counted = new CountDownLatch(1);
+        log.whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                openFiles[0] = log.getOpenFileCount();
+                counted.countDown();
+            }
+        });
+        assertTrue(counted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, openFiles[0]);
+
+        // rejoining reads the same history back from the log
+        assertEquals(history, visit(board, connection));
+        assertEquals("board hits=1, misses=2, evictions=1", pager.report());
+        assertEquals(resident, board.getResidentBytes());
+        pool.shutdown();
+    }
+
+    @Test
+    public void pageOutAllTest() throws IOException, InterruptedException {
+        final ExecutorService pool = Executors.newCachedThreadPool();
+        final AtomicInteger tasks = new AtomicInteger(0);
+        Executor counting = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.incrementAndGet();
+                pool.execute(task);
+            }
+        };
+        BoardLog log = new BoardLog(Files.createTempDirectory("boardpager").toFile(), BoardLog.FsyncPolicy.NONE);
+        log.start();
+        List<Board> boards = new ArrayList<Board>();
+        BoardPager pager = new BoardPager(Collections.unmodifiableList(boards), 1, false);
+        RecordingConnection connection = new RecordingConnection();
+        for (int i = 0; i < 5; i++) {
+            Board board = new Board("paged" + i, counting, false, log, pager);
+            boards.add(board);
+            visit(board, connection);
+            board.post("drawLineSegment -c [-16776961] -w [5] -p [1 2 3 4] -i [User0" + i + "]");
+            await(board);
+            assertTrue(board.getResidentBytes() > 0);
+        }
+
+        pager.check();
+        awaitPageOut(boards, log);
+        assertEquals("board hits=0, misses=5, evictions=5", pager.report());
+        for (Board board : boards) {
+            assertEquals(0, board.getResidentBytes());
+        }
+
+        // so the pager has nothing left to page out, and asks no board to
+        int before = tasks.get();
+        pager.check();
+        assertEquals(before, tasks.get());
+        awaitPageOut(boards, log);
+        assertEquals("board hits=0, misses=5, evictions=5", pager.report());
+        pool.shutdown();
+    }
+}
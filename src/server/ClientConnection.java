@@ -0,0 +1,66 @@
+package server;
+
+import java.util.List;
+
+import model.Client;
+
+/**
+ * A single Client's connection to a WhiteboardServer, independent of how the
+ * server is serving it (a dedicated thread per socket, or a shared selector
+ * loop).
+ *
+ * Implementations must allow sendFrame/sendMessage to be called from any
+ * thread, and must call Frame.written() on each frame they write.
+ *
+ * @author ankush
+ *
+ */
+interface ClientConnection {
+
+    /**
+     * @return the Client on the other end of this connection
+     */
+    Client getClient();
+
+    /**
+     * Send an encoded frame to this connection's client. The frame may be
+     * shared with other connections.
+     *
+     * @param frame
+     *            the frame
+     */
+    void sendFrame(Frame frame);
+
+    /**
+     * Send a message to this connection's client.
+     *
+     * @param message
+     *            the message, without a trailing newline
+     */
+    void sendMessage(String message);
+
+    /**
+     * Discard every frame of board traffic (see Frame) queued for this
+     * connection's client that hasn't started to be written yet, and send
+     * frames after whatever else is still queued.
+     *
+     * @param frames
+     *            the frames, in order, requires !frames.isEmpty()
+     */
+    void resync(List<Frame> frames);
+
+    /**
+     * Switch this connection to the BINARY_V1 wire protocol (see
+     * model.WireProtocol): everything the client sends after the request
+     * being handled is read as binary frames, and the client is sent a
+     * "useProtocol" reply followed by everything else in binary frames. Only
+     * called while handling the client's useProtocol request.
+     */
+    void useBinaryProtocol();
+
+    /**
+     * Close this connection. Messages sent afterwards are dropped; the server
+     * is told the client has left once the connection has shut down.
+     */
+    void disconnect();
+}
@@ -0,0 +1,201 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import model.WireProtocol;
+
+/**
+ * One or more messages, encoded once for the wire: each message in UTF-8
+ * followed by a newline. Frames are immutable, so a single Frame is shared by
+ * every connection a message is sent to instead of each connection encoding
+ * its own copy.
+ *
+ * Connections that have switched to the binary wire protocol (see
+ * model.WireProtocol) write the same messages as BINARY_V1 frames instead.
+ * Those are only encoded the first time such a connection writes the Frame,
+ * and then shared the same way.
+ *
+ * A Frame may carry a callback for the writer to run once the frame has been
+ * handed to the socket, which is how replays are timed. A Frame may also be
+ * marked as board traffic (a board's drawings, roster changes and history),
+ * which a resync to the board replaces; anything else, such as replies and
+ * board announcements, is always delivered.
+ *
+ * @author ankush
+ *
+ */
+final class Frame {
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private final byte[] bytes;
+    private final Runnable onWritten;
+    private final boolean boardTraffic;
+
+    // encoded from bytes when first needed; racing encoders produce equal
+    // arrays, so whichever is kept doesn't matter
+    private volatile byte[] binary;
+
+    private Frame(byte[] bytes, Runnable onWritten) {
+        this(bytes, null, onWritten, false);
+    }
+
+    private Frame(byte[] bytes, byte[] binary, Runnable onWritten, boolean boardTraffic) {
+        this.bytes = bytes;
+        this.binary = binary;
+        this.onWritten = onWritten;
+        this.boardTraffic = boardTraffic;
+    }
+
+    /**
+     * @param message
+     *            a message, without a trailing newline
+     * @return the frame holding message
+     */
+    static Frame of(String message) {
+        return new Frame((message + "\n").getBytes(CHARSET), null);
+    }
+
+    /**
+     * @param messages
+     *            messages, without trailing newlines
+     * @return the frame holding every message, in order
+     */
+    static Frame of(List<String> messages) {
+        StringBuilder sb = new StringBuilder();
+        for (String message : messages) {
+            sb.append(message).append('\n');
+        }
+        return new Frame(sb.toString().getBytes(CHARSET), null);
+    }
+
+    /**
+     * Split messages into frames of roughly chunkSize bytes each, breaking
+     * only between messages, so that a long list can be written in large
+     * pieces without building one huge frame.
+     *
+     * @param messages
+     *            messages, without trailing newlines
+     * @param chunkSize
+     *            the size at which a frame is complete, requires chunkSize > 0
+     * @return frames holding every message, in order; empty if messages is
+     *         empty
+     */
+    static List<Frame> chunks(Iterable<String> messages, int chunkSize) {
+        List<Frame> frames = new ArrayList<Frame>();
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(chunkSize + 256);
+        for (String message : messages) {
+            byte[] line = (message + "\n").getBytes(CHARSET);
+            chunk.write(line, 0, line.length);
+            if (chunk.size() >= chunkSize) {
+                frames.add(new Frame(chunk.toByteArray(), null));
+                chunk.reset();
+            }
+        }
+        if (chunk.size() > 0) {
+            frames.add(new Frame(chunk.toByteArray(), null));
+        }
+        return frames;
+    }
+
+    /**
+     * @return a frame holding no messages, distinct from every other frame
+     */
+    static Frame empty() {
+        return new Frame(new byte[0], null);
+    }
+
+    /**
+     * @param onWritten
+     *            run by the writer once the frame has been written
+     * @return a frame with the same bytes as this one, that runs onWritten
+     */
+    Frame whenWritten(Runnable onWritten) {
+        return new Frame(bytes, binary, onWritten, boardTraffic);
+    }
+
+    /**
+     * @return a frame with the same bytes as this one, marked as board traffic
+     */
+    Frame forBoard() {
+        return new Frame(bytes, binary, onWritten, true);
+    }
+
+    /**
+     * @return true if this frame is board traffic, which a resync replaces
+     */
+    boolean isBoardTraffic() {
+        return boardTraffic;
+    }
+
+    /**
+     * Called by a connection's writer once this frame has been handed to the
+     * socket.
+     */
+    void written() {
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    /**
+     * @return the number of bytes in this frame in the text protocol, which
+     *         is what backlogs are measured in whatever the protocol
+     */
+    int size() {
+        return bytes.length;
+    }
+
+    /**
+     * @param binary
+     *            whether to encode the frame in the binary protocol
+     * @return a new read-only buffer over this frame's bytes, with its own
+     *         position, for a single write
+     */
+    ByteBuffer asBuffer(boolean binary) {
+        return ByteBuffer.wrap(getBytes(binary)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write this frame's bytes to out.
+     *
+     * @param out
+     * @param binary
+     *            whether to encode the frame in the binary protocol
+     * @throws IOException
+     */
+    void writeTo(OutputStream out, boolean binary) throws IOException {
+        out.write(getBytes(binary));
+    }
+
+    /**
+     * @param binary
+     * @return this frame's bytes in the binary protocol if binary, otherwise
+     *         in the text protocol
+     */
+    private byte[] getBytes(boolean binary) {
+        if (!binary) {
+            return bytes;
+        }
+        byte[] encoded = this.binary;
+        if (encoded == null) {
+            List<String> messages = new ArrayList<String>();
+            String text = new String(bytes, CHARSET);
+            int start = 0;
+            for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+                messages.add(text.substring(start, end));
+                start = end + 1;
+            }
+            encoded = WireProtocol.encodeFrames(messages);
+            this.binary = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,467 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import model.Client;
+import model.WireProtocol;
+
+/**
+ * A non-blocking serving mode for a WhiteboardServer. Instead of one blocked
+ * thread per socket, a small fixed number of SelectorLoops multiplex every
+ * connected client, so idle clients cost a SelectionKey and a few small
+ * objects rather than a thread and its stack.
+ *
+ * Incoming bytes are framed into lines (or, once a client has switched to the
+ * binary wire protocol, into binary frames) and handed to the WhiteboardServer
+ * exactly like the requests a WhiteboardThread reads, so both engines share
+ * the same command semantics.
+ *
+ * Concurrency Argument:
+ * Each SocketChannel is registered with exactly one SelectorLoop, and only that
+ * loop's thread ever reads from or writes to it. Other threads only append to
+ * a connection's outbound queue (an OutboundQueue) and ask the owning
+ * loop to flush it, so writes from several broadcasting threads never
+ * interleave within a line. Queued Frames are shared with other connections
+ * and never modified; each write goes through a buffer of its own. A
+ * connection's writeRequested flag is set by whoever queues it for a flush
+ * and cleared by the loop before it flushes, so a connection is queued (and
+ * its loop woken) once per flush rather than once per frame, and a frame
+ * added after a flush has drained the queue always asks for another.
+ *
+ * @author ankush
+ *
+ */
+class NioEngine {
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /**
+     * The most frames handed to a single gathering write
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * Size of the read buffer shared by every connection on a SelectorLoop
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final WhiteboardServer server;
+    private final ServerSocketChannel serverChannel;
+    private final SelectorLoop[] loops;
+
+    /**
+     * Make an NioEngine that accepts connections from serverChannel on behalf
+     * of server.
+     *
+     * @param server
+     *            the server whose commands are run for each line received
+     * @param serverChannel
+     *            a bound ServerSocketChannel
+     * @param loopCount
+     *            the number of SelectorLoops to spread clients over, requires
+     *            loopCount > 0
+     * @throws IOException
+     *             if a Selector cannot be opened
+     */
+    NioEngine(WhiteboardServer server, ServerSocketChannel serverChannel, int loopCount) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.loops = new SelectorLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new SelectorLoop(i);
+        }
+    }
+
+    /**
+     * Start the SelectorLoops and accept client connections, handing them to
+     * the loops round-robin. Never returns unless an exception is thrown.
+     *
+     * @throws IOException
+     *             if the server channel is broken (IOExceptions from individual
+     *             clients do *not* terminate serve())
+     */
+    void serve() throws IOException {
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+        int next = 0;
+        while (true) {
+            // block until a client connects
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            NioConnection connection = new NioConnection(channel, new Client(WhiteboardServer.NO_BOARD),
+                    loops[next]);
+            next = (next + 1) % loops.length;
+            server.addConnection(connection);
+            connection.loop.register(connection);
+        }
+    }
+
+    /**
+     * A thread that owns a Selector and performs all reads and writes for the
+     * connections registered with it.
+     */
+    private class SelectorLoop extends Thread {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Queue<NioConnection> newConnections = new ConcurrentLinkedQueue<NioConnection>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+
+        private SelectorLoop(int index) throws IOException {
+            super("whiteboard-nio-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        /**
+         * Hand a freshly accepted connection to this loop. Threadsafe.
+         */
+        private void register(NioConnection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Ask this loop to flush the outbound queue of connection, unless it
+         * has already been asked and hasn't flushed since. Threadsafe.
+         */
+        private void requestWrite(NioConnection connection) {
+            if (connection.writeRequested.compareAndSet(false, true)) {
+                pendingWrites.add(connection);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                for (NioConnection connection = newConnections.poll(); connection != null; connection = newConnections
+                        .poll()) {
+                    try {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        server.connectionOpened(connection);
+                    } catch (ClosedChannelException e) {
+                        connection.close();
+                    }
+                }
+                for (NioConnection connection = pendingWrites.poll(); connection != null; connection = pendingWrites
+                        .poll()) {
+                    connection.flush();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The NioEngine's view of a single Client. Reads and flushes only happen on
+     * the owning SelectorLoop; sendMessage may be called from any thread.
+     */
+    private class NioConnection implements ClientConnection {
+        private final SocketChannel channel;
+        private final Client client;
+        private final SelectorLoop loop;
+        private final OutboundQueue<Frame> outbound = new OutboundQueue<Frame>();
+        private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+        private volatile boolean closed = false;
+
+        // only touched by the owning loop
+        private SelectionKey key;
+        private ByteArrayOutputStream partialLine;
+        private boolean binaryInput = false;
+        private boolean binaryOutput = false;
+        private Frame binarySwitch;
+        // the binary frame being read: its length once known, and its bytes
+        private long frameLength = 0;
+        private int frameLengthShift = 0;
+        private ByteBuffer partialFrame;
+        private final List<String> requests = new ArrayList<String>();
+        private final List<Frame> gathered = new ArrayList<Frame>(MAX_GATHER);
+        private Frame[] batchFrames;
+        private ByteBuffer[] batch;
+        private int batchStart;
+
+        private NioConnection(SocketChannel channel, Client client, SelectorLoop loop) {
+            this.channel = channel;
+            this.client = client;
+            this.loop = loop;
+        }
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
+        @Override
+        public void sendFrame(Frame frame) {
+            if (closed) {
+                return;
+            }
+            outbound.add(frame, frame.size(), frame.isBoardTraffic());
+            loop.requestWrite(this);
+            if (server.getSlowConsumerPolicy().isExceeded(outbound)) {
+                server.slowConsumer(this, outbound);
+            }
+        }
+
+        @Override
+        public void sendMessage(String message) {
+            sendFrame(Frame.of(message));
+        }
+
+        @Override
+        public void resync(List<Frame> frames) {
+            outbound.discardReplaceable();
+            for (Frame frame : frames) {
+                outbound.add(frame, frame.size(), frame.isBoardTraffic());
+            }
+            loop.requestWrite(this);
+        }
+
+        @Override
+        public void useBinaryProtocol() {
+            // only called from handleRequest, on the owning loop
+            binaryInput = true;
+            binarySwitch = Frame.of(WireProtocol.USE_PROTOCOL_MESSAGE + " " + WireProtocol.BINARY_V1);
+            sendFrame(binarySwitch);
+        }
+
+        @Override
+        public void disconnect() {
+            // the loop owns the key, so let it do the closing
+            closed = true;
+            loop.requestWrite(this);
+        }
+
+        /**
+         * Read whatever is available from the channel and handle every
+         * complete line. Only called by the owning loop.
+         *
+         * @param readBuffer
+         *            the loop's shared scratch buffer
+         */
+        private void read(ByteBuffer readBuffer) {
+            try {
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                while (readBuffer.hasRemaining() && !closed) {
+                    if (binaryInput) {
+                        readFrame(readBuffer);
+                        continue;
+                    }
+                    byte b = readBuffer.get();
+                    if (b == '\n') {
+                        handleLine();
+                    } else {
+                        if (partialLine == null) {
+                            partialLine = new ByteArrayOutputStream(128);
+                        }
+                        partialLine.write(b);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // but don't terminate the loop
+                close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        /**
+         * Read as much of a binary frame from readBuffer as it holds, and
+         * handle the frame's requests if that completes it.
+         *
+         * @param readBuffer
+         *            has remaining bytes
+         * @throws IOException
+         *             if the frame is malformed
+         */
+        private void readFrame(ByteBuffer readBuffer) throws IOException {
+            if (partialFrame == null) {
+                byte b = readBuffer.get();
+                frameLength |= (long) (b & 0x7f) << frameLengthShift;
+                frameLengthShift += 7;
+                if (b < 0) {
+                    if (frameLengthShift > 28) {
+                        throw new IOException("frame length too long");
+                    }
+                    return;
+                }
+                if (frameLength < 1 || frameLength > WireProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("bad frame length " + frameLength);
+                }
+                partialFrame = ByteBuffer.allocate((int) frameLength);
+                return;
+            }
+            int n = Math.min(partialFrame.remaining(), readBuffer.remaining());
+            ByteBuffer slice = readBuffer.duplicate();
+            slice.limit(slice.position() + n);
+            partialFrame.put(slice);
+            readBuffer.position(readBuffer.position() + n);
+            if (partialFrame.hasRemaining()) {
+                return;
+            }
+            partialFrame.flip();
+            try {
+                WireProtocol.decodeFrame(partialFrame, requests);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            } finally {
+                // drop the frame so idle clients hold no buffer
+                partialFrame = null;
+                frameLength = 0;
+                frameLengthShift = 0;
+            }
+            for (String request : requests) {
+                if (!handleRequest(request)) {
+                    break;
+                }
+            }
+            requests.clear();
+        }
+
+        /**
+         * Handle the line accumulated in partialLine, the same way
+         * WhiteboardThread handles a line it reads.
+         */
+        private void handleLine() {
+            String line = "";
+            if (partialLine != null) {
+                line = new String(partialLine.toByteArray(), CHARSET);
+                // drop the partial line so idle clients hold no buffer
+                partialLine = null;
+            }
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            handleRequest(line);
+        }
+
+        /**
+         * @param request
+         * @return false if request was "exit", which closes the connection
+         */
+        private boolean handleRequest(String request) {
+            if (request.equals("exit")) {
+                close();
+                return false;
+            }
+            server.handleRequest(request, client);
+            return true;
+        }
+
+        /**
+         * Write as much of the outbound queue as the socket will accept, and
+         * register for OP_WRITE if anything is left over. Queued frames are
+         * written in batches of up to MAX_GATHER with a single gathering
+         * write each. Only called by the owning loop.
+         */
+        private void flush() {
+            // cleared before draining, so frames added from here on ask again
+            writeRequested.set(false);
+            if (closed) {
+                close();
+                return;
+            }
+            if (key == null || !key.isValid()) {
+                // not registered yet; registering flushes
+                return;
+            }
+            try {
+                while (true) {
+                    if (batch == null) {
+                        int count = outbound.drainTo(gathered, MAX_GATHER);
+                        if (count == 0) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                        batchFrames = gathered.toArray(new Frame[count]);
+                        batch = new ByteBuffer[count];
+                        for (int i = 0; i < count; i++) {
+                            batch[i] = batchFrames[i].asBuffer(binaryOutput);
+                            if (batchFrames[i] == binarySwitch) {
+                                binaryOutput = true;
+                            }
+                        }
+                        gathered.clear();
+                        batchStart = 0;
+                    }
+                    channel.write(batch, batchStart, batch.length - batchStart);
+                    while (batchStart < batch.length && !batch[batchStart].hasRemaining()) {
+                        batchFrames[batchStart].written();
+                        batchStart++;
+                    }
+                    if (batchStart < batch.length) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    batch = null;
+                    batchFrames = null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        /**
+         * Close the channel and tell the server this client has left. Safe to
+         * call more than once.
+         */
+        private void close() {
+            closed = true;
+            if (!channel.isOpen()) {
+                return;
+            }
+            server.connectionClosed(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            outbound.clear();
+        }
+    }
+}
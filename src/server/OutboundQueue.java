@@ -0,0 +1,208 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The messages waiting to be written to one client, with enough bookkeeping
+ * to tell how far behind that client is: the number of bytes queued and how
+ * long the oldest unwritten message has been waiting.
+ *
+ * Any number of threads may add to an OutboundQueue, but only one (the
+ * connection's writer) may take from it. The item most recently taken is
+ * "in flight" until the writer takes the next one or calls doneWriting, and
+ * still counts towards the age of the backlog, since the client hasn't
+ * received it yet.
+ *
+ * @param <T>
+ *            the type of a queued message
+ */
+class OutboundQueue<T> {
+
+    /**
+     * A queued message and what it costs
+     */
+    private static class Entry<T> {
+        private final T item;
+        private final int size;
+        private final boolean replaceable;
+        private final long enqueuedNanos;
+
+        private Entry(T item, int size, boolean replaceable, long enqueuedNanos) {
+            this.item = item;
+            this.size = size;
+            this.replaceable = replaceable;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private final BlockingQueue<Entry<T>> entries = new LinkedBlockingQueue<Entry<T>>();
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+
+    /**
+     * System.nanoTime() at which the in-flight item was queued, or 0 if
+     * nothing is in flight
+     */
+    private volatile long inFlightSince = 0;
+
+    /**
+     * Queue an item. Threadsafe, never blocks.
+     *
+     * @param item
+     *            the message
+     * @param size
+     *            roughly how many bytes writing item will take
+     */
+    void add(T item, int size) {
+        add(item, size, false);
+    }
+
+    /**
+     * Queue an item. Threadsafe, never blocks.
+     *
+     * @param item
+     *            the message
+     * @param size
+     *            roughly how many bytes writing item will take
+     * @param replaceable
+     *            whether discardReplaceable may discard item
+     */
+    void add(T item, int size, boolean replaceable) {
+        queuedBytes.addAndGet(size);
+        entries.add(new Entry<T>(item, size, replaceable, System.nanoTime()));
+    }
+
+    /**
+     * Take the next item, waiting for one if the queue is empty. Only the
+     * writer may call this.
+     *
+     * @return the next item, which is now in flight
+     * @throws InterruptedException
+     */
+    T take() throws InterruptedException {
+        doneWriting();
+        return taken(entries.take());
+    }
+
+    /**
+     * Take the next item if there is one. Only the writer may call this.
+     *
+     * @return the next item, which is now in flight, or null if the queue is
+     *         empty
+     */
+    T poll() {
+        Entry<T> entry = entries.poll();
+        if (entry == null) {
+            doneWriting();
+            return null;
+        }
+        return taken(entry);
+    }
+
+    /**
+     * Take up to max items, in order, without waiting. Only the writer may
+     * call this. The items taken are in flight together until the next take,
+     * so the oldest of them sets the age of the backlog.
+     *
+     * @param items
+     *            the list to add the items to
+     * @param max
+     *            the most items to take, requires max > 0
+     * @return the number of items taken
+     */
+    int drainTo(List<T> items, int max) {
+        Entry<T> entry = entries.poll();
+        if (entry == null) {
+            doneWriting();
+            return 0;
+        }
+        items.add(taken(entry));
+        int count = 1;
+        for (; count < max && (entry = entries.poll()) != null; count++) {
+            queuedBytes.addAndGet(-entry.size);
+            items.add(entry.item);
+        }
+        return count;
+    }
+
+    private T taken(Entry<T> entry) {
+        inFlightSince = entry.enqueuedNanos;
+        queuedBytes.addAndGet(-entry.size);
+        return entry.item;
+    }
+
+    /**
+     * Tell the queue the in-flight item has been completely written. Only
+     * the writer may call this.
+     */
+    void doneWriting() {
+        inFlightSince = 0;
+    }
+
+    /**
+     * Discard every queued item that hasn't been taken yet, and queue item
+     * instead. The in-flight item, if any, is unaffected.
+     *
+     * @param item
+     *            the replacement item
+     * @param size
+     *            roughly how many bytes writing item will take
+     */
+    void replaceQueued(T item, int size) {
+        clear();
+        add(item, size);
+    }
+
+    /**
+     * Discard every replaceable item that hasn't been taken yet, leaving the
+     * rest queued in order. The in-flight item, if any, is unaffected.
+     */
+    void discardReplaceable() {
+        for (Entry<T> entry : entries) {
+            // the writer may take entry first, in which case it stays counted
+            // as taken
+            if (entry.replaceable && entries.remove(entry)) {
+                queuedBytes.addAndGet(-entry.size);
+            }
+        }
+    }
+
+    /**
+     * Discard every queued item that hasn't been taken yet.
+     */
+    void clear() {
+        for (Entry<T> entry = entries.poll(); entry != null; entry = entries.poll()) {
+            queuedBytes.addAndGet(-entry.size);
+        }
+    }
+
+    /**
+     * @return the total size of the items waiting to be taken
+     */
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return System.nanoTime() at which the in-flight item was queued, or 0
+     *         if nothing is in flight
+     */
+    long getInFlightSince() {
+        return inFlightSince;
+    }
+
+    /**
+     * @return System.nanoTime() at which the oldest item the client has not
+     *         yet received was queued, or 0 if there is no such item
+     */
+    long getOldestSince() {
+        long since = inFlightSince;
+        if (since != 0) {
+            return since;
+        }
+        Entry<T> head = entries.peek();
+        return head == null ? 0 : head.enqueuedNanos;
+    }
+}
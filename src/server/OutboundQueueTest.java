@@ -0,0 +1,96 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for OutboundQueue: that it counts the bytes waiting, tracks the age of
+ * the oldest message the client hasn't received (including the one in
+ * flight), and that discardReplaceable only discards replaceable messages,
+ * leaving the rest in order.
+ *
+ * @author ankush
+ *
+ */
+public class OutboundQueueTest {
+
+    @Test
+    public void queuedBytesTest() {
+        OutboundQueue<String> queue = new OutboundQueue<String>();
+        assertEquals(0, queue.getQueuedBytes());
+        queue.add("a", 10);
+        queue.add("b", 20);
+        queue.add("c", 30);
+        assertEquals(60, queue.getQueuedBytes());
+
+        assertEquals("a", queue.poll());
+        assertEquals(50, queue.getQueuedBytes());
+
+        List<String> drained = new ArrayList<String>();
+        assertEquals(2, queue.drainTo(drained, 5));
+        assertEquals("b", drained.get(0));
+        assertEquals("c", drained.get(1));
+        assertEquals(0, queue.getQueuedBytes());
+
+        queue.add("d", 40);
+        queue.clear();
+        assertEquals(0, queue.getQueuedBytes());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void oldestSinceTest() throws InterruptedException {
+        OutboundQueue<String> queue = new OutboundQueue<String>();
+        assertEquals(0, queue.getOldestSince());
+
+        long before = System.nanoTime();
+        queue.add("a", 1);
+        long oldest = queue.getOldestSince();
+        assertTrue(oldest >= before);
+        Thread.sleep(2);
+        queue.add("b", 1);
+        assertEquals(oldest, queue.getOldestSince());
+
+        // "a" is in flight, so the client still hasn't received it
+        assertEquals("a", queue.take());
+        assertEquals(oldest, queue.getInFlightSince());
+        assertEquals(oldest, queue.getOldestSince());
+
+        queue.doneWriting();
+        assertEquals(0, queue.getInFlightSince());
+        assertTrue(queue.getOldestSince() > oldest);
+
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getOldestSince());
+    }
+
+    @Test
+    public void discardReplaceableTest() {
+        OutboundQueue<String> queue = new OutboundQueue<String>();
+        queue.add("drawing 1", 10, true);
+        queue.add("newBoard b", 1, false);
+        queue.add("drawing 2", 10, true);
+        queue.add("username x", 2, false);
+        queue.add("drawing 3", 10, true);
+
+        // the in-flight message is never discarded
+        assertEquals("drawing 1", queue.poll());
+        queue.discardReplaceable();
+        assertEquals(3, queue.getQueuedBytes());
+
+        queue.add("resync", 5, true);
+        List<String> drained = new ArrayList<String>();
+        queue.drainTo(drained, 10);
+        List<String> expected = new ArrayList<String>();
+        expected.add("newBoard b");
+        expected.add("username x");
+        expected.add("resync");
+        assertEquals(expected, drained);
+        assertEquals(0, queue.getQueuedBytes());
+    }
+}
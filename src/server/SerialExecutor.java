@@ -0,0 +1,102 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on threads
+ * borrowed from a shared pool. Many SerialExecutors can share one pool: each
+ * only occupies a pool thread while it has tasks, and gives the thread back
+ * after a batch of tasks so that one busy SerialExecutor can't starve the
+ * others.
+ *
+ * Concurrency Argument:
+ * pending counts the tasks submitted but not yet finished. Only the submitter
+ * that raises it from 0 schedules the drainer, and the drainer only stops once
+ * it has lowered it back to 0 (or rescheduled itself), so at most one drainer
+ * runs at any time and every submitted task is run exactly once. Handing tasks
+ * over through a ConcurrentLinkedQueue and an AtomicInteger makes everything a
+ * task did visible to the next task, even on another pool thread.
+ *
+ * @author ankush
+ *
+ */
+class SerialExecutor implements Executor {
+
+    /**
+     * The number of tasks run before giving the pool thread back
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicInteger maxPending = new AtomicInteger(0);
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            int ran = 0;
+            while (true) {
+                try {
+                    tasks.poll().run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // but keep running later tasks
+                }
+                if (pending.decrementAndGet() == 0) {
+                    return;
+                }
+                if (++ran == BATCH_SIZE) {
+                    pool.execute(this);
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * Make a SerialExecutor.
+     *
+     * @param pool
+     *            the executor whose threads run this executor's tasks
+     */
+    SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Run task after every task submitted before it. Threadsafe, never
+     * blocks.
+     *
+     * @param task
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        int depth = pending.incrementAndGet();
+        for (int max = maxPending.get(); depth > max; max = maxPending.get()) {
+            if (maxPending.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+        if (depth == 1) {
+            pool.execute(drainer);
+        }
+    }
+
+    /**
+     * @return the number of tasks submitted but not yet finished
+     */
+    int getDepth() {
+        return pending.get();
+    }
+
+    /**
+     * @return the largest getDepth() since the last call to takeMaxDepth()
+     */
+    int takeMaxDepth() {
+        return maxPending.getAndSet(pending.get());
+    }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What a WhiteboardServer does about a client that can't keep up with its
+ * board: once the client's outbound backlog holds more than maxBacklogBytes,
+ * or its oldest undelivered message is more than maxBacklogSeconds old, the
+ * client is either disconnected or resynced.
+ *
+ * Resyncing throws away the board traffic queued for the client (see Frame)
+ * and queues a single "boardChanged" to its current board plus that board's
+ * roster and transcript in its place, which clients already treat as "clear
+ * and redraw"; replies and board announcements stay queued. A resync is only
+ * worth it if it's smaller than the backlog it replaces and the client is
+ * still accepting data at all, so otherwise the client is disconnected anyway.
+ *
+ * Counts how often each action is taken. Threadsafe.
+ *
+ * @author ankush
+ *
+ */
+class SlowConsumerPolicy {
+
+    /**
+     * The action to take on a slow client
+     */
+    enum Action {
+        DISCONNECT, RESYNC
+    }
+
+    private final Action action;
+    private final long maxBacklogBytes;
+    private final long maxBacklogNanos;
+
+    private final AtomicLong disconnects = new AtomicLong(0);
+    private final AtomicLong resyncs = new AtomicLong(0);
+
+    /**
+     * Make a SlowConsumerPolicy.
+     *
+     * @param action
+     *            what to do with a slow client
+     * @param maxBacklogBytes
+     *            requires maxBacklogBytes > 0
+     * @param maxBacklogAge
+     *            how long the oldest undelivered message may wait, requires
+     *            maxBacklogAge > 0
+     * @param unit
+     *            the unit of maxBacklogAge
+     */
+    SlowConsumerPolicy(Action action, long maxBacklogBytes, long maxBacklogAge, TimeUnit unit) {
+        this.action = action;
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.maxBacklogNanos = unit.toNanos(maxBacklogAge);
+    }
+
+    /**
+     * @return the action to take on a slow client
+     */
+    Action getAction() {
+        return action;
+    }
+
+    /**
+     * @param queue
+     *            a client's outbound queue
+     * @return true if the client behind queue has fallen too far behind
+     */
+    boolean isExceeded(OutboundQueue<?> queue) {
+        return queue.getQueuedBytes() > maxBacklogBytes || isTooOld(queue.getOldestSince());
+    }
+
+    /**
+     * @param queue
+     *            a client's outbound queue
+     * @param resyncBytes
+     *            the size of the resync that would replace its backlog
+     * @return true if replacing the client's backlog with a resync of
+     *         resyncBytes would help it catch up
+     */
+    boolean shouldResync(OutboundQueue<?> queue, long resyncBytes) {
+        return action == Action.RESYNC && resyncBytes < queue.getQueuedBytes()
+                && !isTooOld(queue.getInFlightSince());
+    }
+
+    private boolean isTooOld(long sinceNanos) {
+        return sinceNanos != 0 && System.nanoTime() - sinceNanos > maxBacklogNanos;
+    }
+
+    /**
+     * Record that a slow client was disconnected.
+     *
+     * @return a line describing the policy's counters
+     */
+    String recordDisconnect() {
+        disconnects.incrementAndGet();
+        return report();
+    }
+
+    /**
+     * Record that a slow client was resynced.
+     *
+     * @return a line describing the policy's counters
+     */
+    String recordResync() {
+        resyncs.incrementAndGet();
+        return report();
+    }
+
+    /**
+     * @return a line describing how often each action has been taken
+     */
+    String report() {
+        return String.format("slow consumers so far: %d disconnected, %d resynced", disconnects.get(),
+                resyncs.get());
+    }
+}
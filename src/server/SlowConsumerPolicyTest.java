@@ -0,0 +1,80 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for SlowConsumerPolicy: a backlog is exceeded once it holds more than
+ * the byte limit or its oldest message is older than the age limit, and a
+ * slow client is only resynced if the policy says so, the resync is smaller
+ * than the backlog it replaces, and the client is still taking data.
+ *
+ * @author ankush
+ *
+ */
+public class SlowConsumerPolicyTest {
+
+    @Test
+    public void byteLimitTest() {
+        SlowConsumerPolicy policy = new SlowConsumerPolicy(SlowConsumerPolicy.Action.DISCONNECT, 100, 1,
+                TimeUnit.HOURS);
+        OutboundQueue<String> queue = new OutboundQueue<String>();
+        assertFalse(policy.isExceeded(queue));
+        queue.add("a", 100);
+        assertFalse(policy.isExceeded(queue));
+        queue.add("b", 1);
+        assertTrue(policy.isExceeded(queue));
+        queue.poll();
+        assertFalse(policy.isExceeded(queue));
+    }
+
+    @Test
+    public void ageLimitTest() throws InterruptedException {
+        SlowConsumerPolicy policy = new SlowConsumerPolicy(SlowConsumerPolicy.Action.DISCONNECT, 1000, 1,
+                TimeUnit.MILLISECONDS);
+        OutboundQueue<String> queue = new OutboundQueue<String>();
+        queue.add("a", 1);
+        Thread.sleep(10);
+        assertTrue(policy.isExceeded(queue));
+
+        // still exceeded while the old message is in flight
+        queue.poll();
+        assertTrue(policy.isExceeded(queue));
+
+        queue.doneWriting();
+        assertFalse(policy.isExceeded(queue));
+    }
+
+    @Test
+    public void actionTest() throws InterruptedException {
+        SlowConsumerPolicy disconnect = new SlowConsumerPolicy(SlowConsumerPolicy.Action.DISCONNECT, 100, 1,
+                TimeUnit.HOURS);
+        SlowConsumerPolicy resync = new SlowConsumerPolicy(SlowConsumerPolicy.Action.RESYNC, 100, 1,
+                TimeUnit.HOURS);
+        OutboundQueue<String> queue = new OutboundQueue<String>();
+        queue.add("a", 200);
+        assertEquals(SlowConsumerPolicy.Action.DISCONNECT, disconnect.getAction());
+        assertFalse(disconnect.shouldResync(queue, 50));
+
+        assertEquals(SlowConsumerPolicy.Action.RESYNC, resync.getAction());
+        assertTrue(resync.shouldResync(queue, 50));
+        // a resync no smaller than the backlog doesn't help
+        assertFalse(resync.shouldResync(queue, 200));
+
+        // neither does one to a client that has stopped taking data
+        SlowConsumerPolicy impatient = new SlowConsumerPolicy(SlowConsumerPolicy.Action.RESYNC, 100, 1,
+                TimeUnit.MILLISECONDS);
+        OutboundQueue<String> stuck = new OutboundQueue<String>();
+        stuck.add("a", 1);
+        stuck.poll();
+        stuck.add("b", 200);
+        Thread.sleep(10);
+        assertFalse(impatient.shouldResync(stuck, 50));
+
+        assertEquals("slow consumers so far: 1 disconnected, 0 resynced", resync.recordDisconnect());
+        assertEquals("slow consumers so far: 1 disconnected, 1 resynced", resync.recordResync());
+    }
+}
@@ -15,7 +15,15 @@ public class TestUtil {
         startServer(debug ? "--debug" : "--no-debug", "--port", portStr);
     }
     
+    public static void startServer(boolean debug, int port, String engine) {
+        startServer(debug ? "--debug" : "--no-debug", "--port", Integer.toString(port), "--engine", engine);
+    }
+    
     public static Socket connect() throws IOException {
+        return connect(port);
+    }
+    
+    public static Socket connect(int port) throws IOException {
         Socket ret = null;
         final int MAX_ATTEMPTS = 50;
         int attempts = 0;
@@ -0,0 +1,192 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import model.BinaryOpCodec;
+
+/**
+ * A board's transcript, packed: each drawing message is encoded with a
+ * BinaryOpCodec into a list of byte arrays of about CHUNK_SIZE bytes, and only
+ * decoded back into text while it is being replayed or drawn. A typical
+ * drawing takes a tenth of the memory it would as a String in a list.
+ *
+ * Not threadsafe; confined to its Board's actor.
+ *
+ * @author ankush
+ *
+ */
+final class Transcript implements Iterable<String> {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Where every CHECKPOINT_INTERVAL-th message starts is remembered, so that
+     * iterating from the middle of the transcript decodes at most this many
+     * messages it doesn't need
+     */
+    private static final int CHECKPOINT_INTERVAL = 256;
+
+    private final BinaryOpCodec codec = new BinaryOpCodec();
+
+    // every chunk but the last is exactly as long as what was written to it
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private int lastChunkLength = 0;
+    private long[] checkpoints = new long[0];
+
+    private int size = 0;
+    private long textLength = 0;
+    // null while the transcript is cleared
+    private ByteBuffer scratch = null;
+
+    /**
+     * Add message to the end of the transcript.
+     *
+     * @param message
+     *            a message, without a trailing newline
+     */
+    void add(String message) {
+        int maxLength = BinaryOpCodec.maxEncodedLength(message);
+        if (scratch == null) {
+            scratch = ByteBuffer.allocate(Math.max(maxLength, 1024));
+        } else if (scratch.capacity() < maxLength) {
+            scratch = ByteBuffer.allocate(Math.max(maxLength, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        codec.encode(message, scratch);
+        int length = scratch.position();
+
+        byte[] chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.length - lastChunkLength < length) {
+            if (chunk != null) {
+                // give back the unused end of the full chunk
+                chunks.set(chunks.size() - 1, Arrays.copyOf(chunk, lastChunkLength));
+            }
+            chunk = new byte[Math.max(CHUNK_SIZE, length)];
+            chunks.add(chunk);
+            lastChunkLength = 0;
+        }
+        if (size % CHECKPOINT_INTERVAL == 0) {
+            int checkpoint = size / CHECKPOINT_INTERVAL;
+            if (checkpoint == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, Math.max(16, checkpoints.length * 2));
+            }
+            checkpoints[checkpoint] = (long) (chunks.size() - 1) << 32 | lastChunkLength;
+        }
+        System.arraycopy(scratch.array(), 0, chunk, lastChunkLength, length);
+        lastChunkLength += length;
+        size++;
+        textLength += message.length() + 1;
+    }
+
+    /**
+     * Remove every message, and give back the memory they took.
+     */
+    void clear() {
+        codec.clear();
+        chunks.clear();
+        scratch = null;
+        lastChunkLength = 0;
+        checkpoints = new long[0];
+        size = 0;
+        textLength = 0;
+    }
+
+    /**
+     * @return the number of messages in the transcript
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of characters in the transcript's messages, counting
+     *         a newline after each
+     */
+    long getTextLength() {
+        return textLength;
+    }
+
+    /**
+     * @return roughly how many bytes of memory the transcript takes
+     */
+    long getMemoryBytes() {
+        long bytes = checkpoints.length * 8L + codec.getTableBytes();
+        if (scratch != null) {
+            bytes += scratch.capacity();
+        }
+        for (byte[] chunk : chunks) {
+            bytes += chunk.length + 16;
+        }
+        return bytes;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * @param from
+     *            requires 0 <= from <= size()
+     * @return an iterator over the messages from index from on, which must not
+     *         be used after the transcript changes
+     */
+    Iterator<String> iterator(final int from) {
+        final int checkpoint = from / CHECKPOINT_INTERVAL;
+        return new Iterator<String>() {
+            private int index = checkpoint * CHECKPOINT_INTERVAL;
+            private int chunkIndex = -1;
+            private ByteBuffer chunk;
+
+            {
+                if (index < size) {
+                    long position = checkpoints[checkpoint];
+                    chunkIndex = (int) (position >>> 32);
+                    chunk = buffer(chunkIndex);
+                    chunk.position((int) position);
+                }
+                while (index < from) {
+                    next();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (!chunk.hasRemaining()) {
+                    chunkIndex++;
+                    chunk = buffer(chunkIndex);
+                }
+                index++;
+                return codec.decode(chunk);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @param chunkIndex
+     * @return a buffer over what has been written to the chunk
+     */
+    private ByteBuffer buffer(int chunkIndex) {
+        byte[] chunk = chunks.get(chunkIndex);
+        int length = chunkIndex == chunks.size() - 1 ? lastChunkLength : chunk.length;
+        return ByteBuffer.wrap(chunk, 0, length);
+    }
+}
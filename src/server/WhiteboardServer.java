@@ -1,22 +1,41 @@
 package server;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import model.Client;
+import model.WireProtocol;
 
 /**
  * WhiteboardServer manages everything.
@@ -30,28 +49,112 @@ public class WhiteboardServer {
      * The default board that the user connects to upon joining the server
      */
     private static String DEFAULT_BOARD = "default";
-    private static String NO_BOARD = "";
+    static String NO_BOARD = "";
+
+    private static final long DEFAULT_MAX_BACKLOG_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_MAX_BACKLOG_SECONDS = 30;
+    private static final long MAILBOX_REPORT_SECONDS = 10;
+    private static final long DEFAULT_BOARD_MEMORY_BYTES = 256 * 1024 * 1024;
+
+    /**
+     * Queued after a WhiteboardThread's last message to stop its writer.
+     * Compared by identity, so it can never be confused with a real message.
+     */
+    private static final Frame CLOSE_SIGNAL = Frame.empty();
+
+    /**
+     * Size of the buffer each WhiteboardThread gathers frames into before
+     * writing them to its socket
+     */
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
 
+    /**
+     * The ways a WhiteboardServer can serve its clients. THREAD runs a
+     * blocking WhiteboardThread on its own platform thread for each socket;
+     * VIRTUAL runs the same WhiteboardThread on a virtual thread (Java 21+);
+     * NIO multiplexes every socket over a small fixed pool of selector loops
+     * (see NioEngine).
+     */
+    enum Engine {
+        THREAD, VIRTUAL, NIO
+    }
+
+    private final Engine engine;
+
+    // exactly one of these is non-null, depending on the engine
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
 
-    @SuppressWarnings("unused")
     private boolean debug;
 
     /**
-     * Store ALL the whiteboards! Boards are represented by lists of string
-     * outputs that construct them (they're constructed on the client-side).
-     * Stored as a synchronized Map to make operations atomic.
+     * What to do about clients that can't keep up with their board
      */
-    private Map<String, List<String>> boards = Collections.synchronizedMap(new HashMap<String, List<String>>());
+    private final SlowConsumerPolicy slowConsumerPolicy;
 
     /**
-     * Store references to all WhiteboardThreads that are connected to the
-     * server. Stored as a synchronized List to make operations atomic.
+     * Where every board's drawings are kept on disk, or null if they aren't
      */
-    private List<WhiteboardThread> clientThreads = Collections.synchronizedList(new ArrayList<WhiteboardThread>());
+    private final BoardLog boardLog;
 
     /**
-     * Make a WhiteboardServer that listens for connections on port.
+     * Pages idle boards out to boardLog, or null if there is no boardLog
+     */
+    private final BoardPager boardPager;
+
+    /**
+     * Held only while creating a board, so that a board is created (and
+     * announced) once, and newBoard messages reach everyone in one order.
+     * Everything else about a board is confined to that Board's actor.
+     * 
+     * This is a ReentrantLock rather than a monitor because it is held while
+     * queuing messages, which may resync or disconnect a client, and a virtual
+     * thread blocked inside a synchronized block pins its carrier.
+     */
+    private final Lock boardCreationLock = new ReentrantLock();
+
+    /**
+     * The threads that run every Board's actor, one per core
+     */
+    private final ExecutorService boardPool = Executors.newFixedThreadPool(Runtime.getRuntime()
+            .availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "whiteboard-board-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The connections with a resync waiting in their board's mailbox, so that
+     * a slow client only ever has one
+     */
+    private final Set<ClientConnection> resyncsPending = Collections
+            .newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>());
+
+    /**
+     * Store ALL the whiteboards! Each Board holds the list of string outputs
+     * that construct it (they're constructed on the client-side) and the
+     * connections currently on it.
+     */
+    private final Map<String, Board> boards = new ConcurrentHashMap<String, Board>();
+
+    /**
+     * The ClientConnection of every Client connected to the server.
+     */
+    private final Map<Client, ClientConnection> connections = new ConcurrentHashMap<Client, ClientConnection>();
+
+    /**
+     * Every connected Client, by username.
+     */
+    private final ConcurrentMap<String, Client> usernames = new ConcurrentHashMap<String, Client>();
+
+    /**
+     * Make a WhiteboardServer that listens for connections on port, using a
+     * thread per connection.
      * 
      * @param port
      *            port number, requires 0 <= port <= 65535
@@ -60,14 +163,76 @@ public class WhiteboardServer {
      * @throws IOException
      */
     public WhiteboardServer(int port, boolean debug) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, debug, Engine.THREAD, new SlowConsumerPolicy(SlowConsumerPolicy.Action.DISCONNECT,
+                DEFAULT_MAX_BACKLOG_BYTES, DEFAULT_MAX_BACKLOG_SECONDS, TimeUnit.SECONDS), null,
+                DEFAULT_BOARD_MEMORY_BYTES);
+    }
+
+    /**
+     * Make a WhiteboardServer that listens for connections on port.
+     * 
+     * @param port
+     *            port number, requires 0 <= port <= 65535
+     * @param debug
+     *            whether debug mode is on on or not
+     * @param engine
+     *            how connections should be served
+     * @param slowConsumerPolicy
+     *            what to do about clients that can't keep up
+     * @param boardLog
+     *            where to keep every board's drawings on disk, or null not to;
+     *            the server starts with the boards recovered from it
+     * @param boardMemory
+     *            the bytes boards may hold in memory before idle ones are
+     *            paged out to boardLog, requires boardMemory > 0
+     * @throws IOException
+     */
+    WhiteboardServer(int port, boolean debug, Engine engine, SlowConsumerPolicy slowConsumerPolicy,
+            BoardLog boardLog, long boardMemory) throws IOException {
+        this.engine = engine;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.boardLog = boardLog;
+        this.boardPager = boardLog == null ? null : new BoardPager(boards.values(), boardMemory, debug);
+        if (engine == Engine.NIO) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+        } else {
+            serverSocket = new ServerSocket(port);
+        }
         this.debug = debug;
+        if (boardLog != null) {
+            recoverBoards();
+            boardLog.start();
+            boardPager.start();
+        }
+    }
+
+    /**
+     * Create a board for every board in boardLog. Each board reads its own
+     * log the first time it is used. Called before any client connects, so
+     * nobody needs to be told about the boards.
+     * 
+     * @throws IOException
+     */
+    private void recoverBoards() throws IOException {
+        long start = System.nanoTime();
+        for (String boardId : boardLog.getBoardIds()) {
+            getOrCreateBoard(boardId, false);
+        }
+        if (debug) {
+            System.err.println(String.format("Recovered %d boards in %d ms", boards.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
     }
 
     /**
      * Start a WhiteboardServer using the given arguments.
      * 
-     * Usage: WhiteboardServer [--debug] [--port PORT]
+     * Usage: WhiteboardServer [--debug] [--port PORT] [--engine ENGINE]
+     * [--slow-consumer ACTION] [--max-backlog-bytes BYTES]
+     * [--max-backlog-seconds SECONDS] [--data-dir DIR] [--fsync POLICY]
+     * [--board-memory BYTES]
      * 
      * The --debug argument means the server should run in debug mode.
      * 
@@ -76,6 +241,31 @@ public class WhiteboardServer {
      * "WhiteboardServer --port 1234" starts the server listening on port 1234.
      * Defaults to port 4500.
      * 
+     * ENGINE is "thread" (one thread per connected client), "virtual" (one
+     * virtual thread per connected client, requires Java 21 or newer) or "nio"
+     * (every client multiplexed over a small pool of selector threads, for
+     * servers with many mostly-idle clients). Defaults to "thread".
+     * 
+     * A client whose unsent messages add up to more than BYTES (default 16 MiB),
+     * or whose oldest unsent message is more than SECONDS old (default 30), is
+     * a slow consumer. ACTION is "disconnect" (drop the client) or "resync"
+     * (replace its backlog with a fresh copy of its board when that is
+     * smaller). Defaults to "disconnect". In debug mode, every time this
+     * happens the server reports how often each action has been taken.
+     * 
+     * DIR is a directory to keep every board's drawings in, one append-only
+     * log per board, created if it does not exist. A server started on the
+     * same DIR starts with the boards it held before it stopped or crashed.
+     * Without --data-dir, boards are lost when the server stops. POLICY is
+     * when the logs are forced to disk: "none" (left to the operating
+     * system), "interval" (at least once a second) or "every-op" (before any
+     * drawing after the last one written). Defaults to "interval".
+     * 
+     * With --data-dir, boards nobody is on are paged out to DIR, least
+     * recently used first, while the boards in memory take more than
+     * BYTES (default 256 MiB), and read back when someone next changes to
+     * them. In debug mode, the server reports every board paged out.
+     * 
      * @param args
      *            arguments
      */
@@ -83,6 +273,13 @@ public class WhiteboardServer {
         // default values
         int port = 4500;
         boolean debug = true;
+        Engine engine = Engine.THREAD;
+        SlowConsumerPolicy.Action slowConsumerAction = SlowConsumerPolicy.Action.DISCONNECT;
+        long maxBacklogBytes = DEFAULT_MAX_BACKLOG_BYTES;
+        long maxBacklogSeconds = DEFAULT_MAX_BACKLOG_SECONDS;
+        File dataDir = null;
+        BoardLog.FsyncPolicy fsyncPolicy = BoardLog.FsyncPolicy.INTERVAL;
+        long boardMemory = DEFAULT_BOARD_MEMORY_BYTES;
 
         // parse args
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
@@ -99,6 +296,55 @@ public class WhiteboardServer {
                         if (port < 0 || port > 65535) {
                             throw new IllegalArgumentException("port " + port + " out of range");
                         }
+                    } else if (flag.equals("--engine")) {
+                        String engineName = arguments.remove();
+                        if (engineName.equals("thread")) {
+                            engine = Engine.THREAD;
+                        } else if (engineName.equals("virtual")) {
+                            engine = Engine.VIRTUAL;
+                        } else if (engineName.equals("nio")) {
+                            engine = Engine.NIO;
+                        } else {
+                            throw new IllegalArgumentException("unknown engine: \"" + engineName + "\"");
+                        }
+                    } else if (flag.equals("--slow-consumer")) {
+                        String actionName = arguments.remove();
+                        if (actionName.equals("disconnect")) {
+                            slowConsumerAction = SlowConsumerPolicy.Action.DISCONNECT;
+                        } else if (actionName.equals("resync")) {
+                            slowConsumerAction = SlowConsumerPolicy.Action.RESYNC;
+                        } else {
+                            throw new IllegalArgumentException("unknown slow consumer action: \"" + actionName
+                                    + "\"");
+                        }
+                    } else if (flag.equals("--max-backlog-bytes")) {
+                        maxBacklogBytes = Long.parseLong(arguments.remove());
+                        if (maxBacklogBytes <= 0) {
+                            throw new IllegalArgumentException("backlog bytes must be positive");
+                        }
+                    } else if (flag.equals("--max-backlog-seconds")) {
+                        maxBacklogSeconds = Long.parseLong(arguments.remove());
+                        if (maxBacklogSeconds <= 0) {
+                            throw new IllegalArgumentException("backlog seconds must be positive");
+                        }
+                    } else if (flag.equals("--data-dir")) {
+                        dataDir = new File(arguments.remove());
+                    } else if (flag.equals("--fsync")) {
+                        String policyName = arguments.remove();
+                        if (policyName.equals("none")) {
+                            fsyncPolicy = BoardLog.FsyncPolicy.NONE;
+                        } else if (policyName.equals("interval")) {
+                            fsyncPolicy = BoardLog.FsyncPolicy.INTERVAL;
+                        } else if (policyName.equals("every-op")) {
+                            fsyncPolicy = BoardLog.FsyncPolicy.EVERY_OP;
+                        } else {
+                            throw new IllegalArgumentException("unknown fsync policy: \"" + policyName + "\"");
+                        }
+                    } else if (flag.equals("--board-memory")) {
+                        boardMemory = Long.parseLong(arguments.remove());
+                        if (boardMemory <= 0) {
+                            throw new IllegalArgumentException("board memory must be positive");
+                        }
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -112,10 +358,16 @@ public class WhiteboardServer {
             System.err.println(iae.getMessage());
             return;
         }
+        if (engine == Engine.VIRTUAL && !hasVirtualThreads()) {
+            System.err.println("the virtual engine requires Java 21 or newer");
+            return;
+        }
 
         // run the server with the given params
         try {
-            runServer(port, debug);
+            BoardLog boardLog = dataDir == null ? null : new BoardLog(dataDir, fsyncPolicy);
+            runServer(port, debug, engine, new SlowConsumerPolicy(slowConsumerAction, maxBacklogBytes,
+                    maxBacklogSeconds, TimeUnit.SECONDS), boardLog, boardMemory);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -123,16 +375,27 @@ public class WhiteboardServer {
 
     /**
      * Start a WhiteboardServer running on the specified port and with the given
-     * debug setting.
+     * debug setting, engine, slow consumer policy, board log and board memory budget.
      * 
      * @param debug
      *            The server will send debug messages only if this is true
      * @param port
      *            The network port on which the server should listen.
+     * @param engine
+     *            How the server should serve its connections.
+     * @param slowConsumerPolicy
+     *            What to do about clients that can't keep up.
+     * @param boardLog
+     *            Where to keep the boards on disk, or null not to.
+     * @param boardMemory
+     *            How much memory boards may take before idle ones are paged
+     *            out.
      * @throws IOException
      */
-    private static void runServer(int port, boolean debug) throws IOException {
-        WhiteboardServer whiteboardServer = new WhiteboardServer(port, debug);
+    private static void runServer(int port, boolean debug, Engine engine, SlowConsumerPolicy slowConsumerPolicy,
+            BoardLog boardLog, long boardMemory) throws IOException {
+        WhiteboardServer whiteboardServer = new WhiteboardServer(port, debug, engine, slowConsumerPolicy,
+                boardLog, boardMemory);
         whiteboardServer.serve();
     }
 
@@ -145,47 +408,286 @@ public class WhiteboardServer {
      *             individual clients do *not* terminate serve())
      */
     private void serve() throws IOException {
+        if (debug) {
+            startMailboxReports();
+        }
+        if (engine == Engine.NIO) {
+            new NioEngine(this, serverChannel, Runtime.getRuntime().availableProcessors()).serve();
+            return;
+        }
+        Executor executor;
+        if (engine == Engine.VIRTUAL) {
+            executor = newVirtualThreadExecutor();
+        } else {
+            executor = new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    new Thread(task).start();
+                }
+            };
+        }
         while (true) {
             // block until a client connects
             final Socket socket = serverSocket.accept();
             final Client newClient = new Client(NO_BOARD);
-            WhiteboardThread thread = new WhiteboardThread(socket, newClient);
-            clientThreads.add(thread);
+            WhiteboardThread thread = new WhiteboardThread(socket, newClient, executor);
+            addConnection(thread);
             // handle the client
-            thread.start();
+            executor.execute(thread);
         }
     }
 
     /**
-     * @param client
-     * @return The first WhiteboardThread found that is using Client c
+     * Every MAILBOX_REPORT_SECONDS, print the boards whose mailboxes have
+     * backed up since the last report, deepest first, to stderr.
      */
-    private synchronized WhiteboardThread getThread(Client client) {
-        synchronized (clientThreads) {
-            for (WhiteboardThread w : clientThreads) {
-                if (w.client.equals(client)) {
-                    return w;
+    private void startMailboxReports() {
+        Thread reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(MAILBOX_REPORT_SECONDS));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    String report = mailboxReport();
+                    if (report != null) {
+                        System.err.println(report);
+                    }
                 }
             }
+        }, "whiteboard-mailbox-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Resets every board's maximum mailbox depth.
+     * 
+     * @return a line listing the boards whose mailboxes held more than one
+     *         task at once since the last report, deepest first, as
+     *         "board=current/max", or null if there are none
+     */
+    String mailboxReport() {
+        List<Board> hot = new ArrayList<Board>();
+        final Map<Board, Integer> maxDepths = new HashMap<Board, Integer>();
+        for (Board board : boards.values()) {
+            int maxDepth = board.takeMaxMailboxDepth();
+            if (maxDepth > 1) {
+                hot.add(board);
+                maxDepths.put(board, maxDepth);
+            }
+        }
+        if (hot.isEmpty()) {
+            return null;
+        }
+        Collections.sort(hot, new Comparator<Board>() {
+            @Override
+            public int compare(Board a, Board b) {
+                return maxDepths.get(b) - maxDepths.get(a);
+            }
+        });
+        StringBuilder sb = new StringBuilder("board mailbox depths:");
+        for (Board board : hot) {
+            sb.append(' ').append(board.getId()).append('=').append(board.getMailboxDepth()).append('/')
+                    .append(maxDepths.get(board));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the running JVM has virtual threads, i.e. has
+     *         Executors.newVirtualThreadPerTaskExecutor
+     */
+    private static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively, since
+     * this project is built against an older Java.
+     * 
+     * @return an Executor that starts a virtual thread per task, or null if
+     *         the running JVM has no virtual threads
+     */
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Registers a newly accepted connection with the server. Must be called
+     * before connectionOpened or any request is handled for its client.
+     * 
+     * @param connection
+     */
+    void addConnection(final ClientConnection connection) {
+        Client client = connection.getClient();
+        connections.put(client, connection);
+        final String username = client.getUsername();
+        usernames.put(username, client);
+        final Board board = getOrCreateBoard(client.getCurrentBoardId(), false);
+        board.execute(new Runnable() {
+            @Override
+            public void run() {
+                board.subscribe(connection, username);
+            }
+        });
+    }
+
+    /**
+     * Sends a newly connected client its username, the list of boards and the
+     * wire protocols the server speaks, and joins it to the default board.
+     * 
+     * @param connection
+     */
+    void connectionOpened(ClientConnection connection) {
+        Client client = connection.getClient();
+        handleClientOperation("getUsername", client);
+        handleClientOperation("listBoards", client);
+        connection.sendMessage(WireProtocol.PROTOCOLS_MESSAGE + " " + WireProtocol.TEXT + " " + WireProtocol.BINARY_V1);
+        joinBoard(client, DEFAULT_BOARD);
+    }
+
+    /**
+     * Forgets the connection and tells the client's board that it has left.
+     * 
+     * @param connection
+     */
+    void connectionClosed(final ClientConnection connection) {
+        Client client = connection.getClient();
+        if (connections.remove(client) == null) {
+            return;
         }
-        return null;
+        usernames.remove(client.getUsername());
+        resyncsPending.remove(connection);
+        final Board board = boards.get(client.getCurrentBoardId());
+        board.execute(new Runnable() {
+            @Override
+            public void run() {
+                // if the client hadn't reached the board yet, it never will
+                board.leave(connection);
+            }
+        });
+    }
+
+    /**
+     * @return what to do about clients that can't keep up with their board
+     */
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
     }
 
     /**
-     * Removes any Thread with the given client
+     * Called by a connection whose backlog has exceeded the slow consumer
+     * policy. Either resyncs the client to its current board or disconnects
+     * it. The resync is decided and sent by the board's actor, so that the
+     * resynced transcript can't miss or duplicate a message on the board.
      * 
+     * @param connection
+     *            the slow connection
+     * @param queue
+     *            the connection's outbound queue
+     */
+    void slowConsumer(final ClientConnection connection, final OutboundQueue<?> queue) {
+        if (slowConsumerPolicy.getAction() == SlowConsumerPolicy.Action.RESYNC) {
+            if (!resyncsPending.add(connection)) {
+                return;
+            }
+            final Board board = boards.get(connection.getClient().getCurrentBoardId());
+            board.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resyncsPending.remove(connection);
+                    if (!board.isMember(connection) || !slowConsumerPolicy.isExceeded(queue)) {
+                        // caught up, or moving boards and about to get a
+                        // transcript anyway
+                        return;
+                    }
+                    List<Frame> resync = new ArrayList<Frame>();
+                    resync.add(Frame.of(String.format("boardChanged %s %s", board.getId(), board.getId())).forBoard());
+                    resync.add(Frame.of(board.getRoster()).forBoard());
+                    resync.addAll(board.getHistory());
+                    long resyncBytes = 0;
+                    for (Frame frame : resync) {
+                        resyncBytes += frame.size();
+                    }
+                    if (slowConsumerPolicy.shouldResync(queue, resyncBytes)) {
+                        String report = slowConsumerPolicy.recordResync();
+                        if (debug) {
+                            System.err.println("Resyncing slow " + connection.getClient() + "; " + report);
+                        }
+                        connection.resync(resync);
+                    } else {
+                        disconnectSlowConsumer(connection);
+                    }
+                }
+            });
+            return;
+        }
+        disconnectSlowConsumer(connection);
+    }
+
+    private void disconnectSlowConsumer(ClientConnection connection) {
+        String report = slowConsumerPolicy.recordDisconnect();
+        if (debug) {
+            System.err.println("Disconnecting slow " + connection.getClient() + "; " + report);
+        }
+        connection.disconnect();
+    }
+
+    /**
      * @param client
-     * @return true if such a Thread was found and removed
+     * @return The ClientConnection that is using Client c, or null if there is
+     *         none
+     */
+    private ClientConnection getConnection(Client client) {
+        return connections.get(client);
+    }
+
+    /**
+     * Returns the board named boardId, creating it if it does not exist.
+     * 
+     * @param boardId
+     * @param announce
+     *            whether to tell every client about the board if it is created
+     * @return the board
      */
-    private synchronized boolean removeThread(Client client) {
-        synchronized (clientThreads) {
-            for (WhiteboardThread w : clientThreads) {
-                if (w.client.equals(client)) {
-                    return clientThreads.remove(w);
+    private Board getOrCreateBoard(String boardId, boolean announce) {
+        Board board = boards.get(boardId);
+        if (board != null) {
+            return board;
+        }
+        // locked in case multiple users join the same new board at the same time
+        boardCreationLock.lock();
+        try {
+            board = boards.get(boardId);
+            if (board == null) {
+                // clients wait on NO_BOARD, where nothing is ever drawn
+                board = new Board(boardId, boardPool, debug, boardId.equals(NO_BOARD) ? null : boardLog,
+                        boardPager);
+                boards.put(boardId, board);
+                if (announce) {
+                    globalMessage("newBoard " + boardId);
                 }
             }
+            return board;
+        } finally {
+            boardCreationLock.unlock();
         }
-        return false;
     }
 
     /**
@@ -193,32 +695,22 @@ public class WhiteboardServer {
      * 
      * @param message
      */
-    private synchronized void globalMessage(String message) {
-        synchronized (clientThreads) {
-            for (WhiteboardThread w : clientThreads) {
-                w.sendMessage(message);
-            }
+    private void globalMessage(String message) {
+        Frame frame = Frame.of(message);
+        for (ClientConnection c : connections.values()) {
+            c.sendFrame(frame);
         }
     }
 
     /**
      * Sends message to any thread working on the given board and adds it to the
-     * board's transcript.
+     * board's transcript, in the order the board's actor receives it.
      * 
      * @param message
      * @param boardId
      */
-    private synchronized void announceMessage(String message, String boardId) {
-        synchronized (clientThreads) {
-        	synchronized (boards) {
-        		boards.get(boardId).add(message);
-            }
-            for (WhiteboardThread w : clientThreads) {
-                if (w.client.getCurrentBoardId().equals(boardId)) {
-                    w.sendMessage(message);
-                }
-            }
-        }
+    private void announceMessage(String message, String boardId) {
+        boards.get(boardId).post(message);
     }
 
     /**
@@ -228,22 +720,40 @@ public class WhiteboardServer {
      */
     private static boolean isClientOperation(String input) {
         String regex = "(changeBoard [a-zA-Z0-9_]+)" + "|(setUsername [a-zA-Z0-9_]+)" + "|(listBoards)"
-                + "|(getUsername)";
+                + "|(getUsername)" + "|(useProtocol [a-zA-Z0-9_]+)";
         return input.matches(regex);
     }
 
     /**
-     * Handles input from a client. Thread-safe because the server only handles
-     * one client operation at a time.
+     * Handler for client input, performing requested operations and sending
+     * an output message.
+     * 
+     * @param input
+     *            message from client
+     * @param client
+     *            the client from which the input originates
+     */
+    void handleRequest(String input, Client client) {
+        if (isClientOperation(input)) {
+            handleClientOperation(input, client);
+        } else {
+            announceMessage(input, client.getCurrentBoardId());
+        }
+    }
+
+    /**
+     * Handles input from a client. Thread-safe because each engine handles a
+     * given client's input one line at a time, on one thread, and everything
+     * shared between clients is confined to a board's actor or is concurrent.
      * 
      * @param input
      *            the string to react to
      * @param client
      *            the client from which the input originates
      */
-    private synchronized void handleClientOperation(String input, Client client) {
+    private void handleClientOperation(String input, Client client) {
 //        assert isClientOperation(input);
-        WhiteboardThread thread = getThread(client);
+        ClientConnection thread = getConnection(client);
         assert thread != null;
 
         String[] args = input.split(" ");
@@ -258,7 +768,6 @@ public class WhiteboardServer {
             thread.sendMessage(sb.toString());
             break;
         case "changeBoard":
-            String oldBoard = client.getCurrentBoardId();
             String newBoard = args[1];
             joinBoard(client, newBoard);
             break;
@@ -269,206 +778,303 @@ public class WhiteboardServer {
         case "getUsername":
             thread.sendMessage("username " + client.getUsername());
             break;
-        }
-    }
-
-    private boolean isUniqueUsername(String name) {
-        synchronized (clientThreads) {
-            for (WhiteboardThread t : clientThreads) {
-                if (t.client.getUsername().equals(name)) {
-                    return false;
-                }
+        case WireProtocol.USE_PROTOCOL_MESSAGE:
+            if (args[1].equals(WireProtocol.BINARY_V1)) {
+                thread.useBinaryProtocol();
+            } else {
+                // anything we didn't offer; keep talking text
+                thread.sendMessage(WireProtocol.USE_PROTOCOL_MESSAGE + " " + WireProtocol.TEXT);
             }
+            break;
         }
-        return true;
     }
 
-    private void setUsername(Client client, String newName) {
-        // synchronized on client so that more than one joinBoard command isn't
-        // run at a time for a given client
-        synchronized (client) {
-            WhiteboardThread thread = getThread(client);
-            assert thread != null;
-
-            if (isUniqueUsername(newName) && !newName.matches("User[0-9]+")) {
-                thread.sendMessage(String.format("usernameChanged %s %s", client.getUsername(), newName));
-                announceMessage("userQuit " + client.getUsername(), client.getCurrentBoardId());
-                client.setUsername(newName);
-                announceMessage("userJoined " + client.getUsername(), client.getCurrentBoardId());
-            } else {
-                // non-unique username or username in format "User[0-9]+"
-                thread.sendMessage(String.format("usernameChanged %s %s", client.getUsername(), client.getUsername()));
-            }
+    private void setUsername(Client client, final String newName) {
+        // only this client's own input thread changes its name, so the only
+        // race is with other clients claiming the same name at once
+        final ClientConnection thread = getConnection(client);
+        assert thread != null;
+
+        if (!newName.matches("User[0-9]+") && usernames.putIfAbsent(newName, client) == null) {
+            String oldName = client.getUsername();
+            thread.sendMessage(String.format("usernameChanged %s %s", oldName, newName));
+            usernames.remove(oldName);
+            client.setUsername(newName);
+            final Board board = boards.get(client.getCurrentBoardId());
+            board.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // if the client hasn't reached the board yet, joining
+                    // will announce the new name
+                    board.rename(thread, newName);
+                }
+            });
+        } else {
+            // non-unique username or username in format "User[0-9]+"
+            thread.sendMessage(String.format("usernameChanged %s %s", client.getUsername(), client.getUsername()));
         }
     }
 
     /**
      * Helper method that allows the given client to join a board with the given
-     * id. Creates the board if it does not exist. Also sends the board
-     * transcript to the client and sends the appropriate userJoined message to
-     * everyone.
+     * id. Creates the board if it does not exist. Also sends the board's
+     * roster and transcript to the client and sends the appropriate
+     * userJoined message to everyone.
+     * 
+     * Only this client's own input thread moves it between boards, and it
+     * does so straight away so that the client's next operations go to the new
+     * board. Leaving is queued on the old board's actor, which then queues
+     * joining on the new board's, so the client sees its userQuit before the
+     * new board. Operations that reach the new board first are in the
+     * transcript the client is sent when it joins.
      * 
      * @param client
      * @param newBoard
      */
-    private void joinBoard(Client client, String newBoard) {
-        // synchronized on client so that more than one joinBoard command isn't
-        // run at a time for a given client
-        synchronized (client) {
-            WhiteboardThread thread = getThread(client);
-            assert thread != null;
-            assert newBoard.length() > 0;
-            
-            String oldBoard = client.getCurrentBoardId();
-            
-            if (!oldBoard.equals(newBoard) && newBoard.length() > 0){
-	
-	            // create board if it doesn't exist. synchronized on boards in case
-	            // multiple users join the same board at the same time
-	            synchronized (boards) {
-	                if (!boards.containsKey(newBoard)) {
-	                    boards.put(newBoard, new ArrayList<String>());
-	                    globalMessage("newBoard " + newBoard);
-	                }
-	            }
-	            announceMessage("userQuit " + client.getUsername(), oldBoard);
-	            announceMessage("userJoined " + client.getUsername(), newBoard);
-	            thread.sendMessage(String.format("boardChanged %s %s", oldBoard, newBoard));
-	            client.setCurrentBoardId(newBoard);
-	            thread.sendMessages(boards.get(newBoard));
-	            
-            }
+    private void joinBoard(final Client client, final String newBoard) {
+        final ClientConnection thread = getConnection(client);
+        assert thread != null;
+        assert newBoard.length() > 0;
+
+        final String oldBoard = client.getCurrentBoardId();
+
+        if (!oldBoard.equals(newBoard) && newBoard.length() > 0) {
+            final Board board = getOrCreateBoard(newBoard, true);
+            final Board old = boards.get(oldBoard);
+            client.setCurrentBoardId(newBoard);
+            old.execute(new Runnable() {
+                @Override
+                public void run() {
+                    old.leave(thread);
+                    board.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // skip if the client has since left or moved on
+                            if (connections.get(client) == thread && newBoard.equals(client.getCurrentBoardId())) {
+                                board.join(thread, client.getUsername(),
+                                        String.format("boardChanged %s %s", oldBoard, newBoard));
+                            }
+                        }
+                    });
+                }
+            });
         }
     }
 
     /**
-     * The Thread responsible for a single Client's interactions with the
-     * server.
+     * The task responsible for a single Client's interactions with the server,
+     * run on its own (platform or virtual) thread.
+     * 
+     * Outgoing messages are never written by the thread that sends them:
+     * sendMessage only appends to an outbound queue, which a separate writer
+     * task drains to the socket. A client on a slow link therefore only delays
+     * itself, not the thread broadcasting to its board, and is dealt with by
+     * the server's SlowConsumerPolicy once its backlog grows too large.
      * 
      */
-    private class WhiteboardThread extends Thread {
+    private class WhiteboardThread implements Runnable, ClientConnection {
         private final Client client;
         private final Socket socket;
+        private final Executor executor;
+
+        /**
+         * Frames waiting to be written to the socket, in order
+         */
+        private final OutboundQueue<Frame> outbound = new OutboundQueue<Frame>();
+
+        /**
+         * Set once this connection is being shut down; nothing more is queued
+         */
+        private volatile boolean disconnected = false;
+
+        /**
+         * Whether the client's requests are read as binary frames; only
+         * touched by the reader
+         */
+        private boolean binaryInput = false;
+
+        /**
+         * The reply to the client's useProtocol request, once it has asked;
+         * the writer switches to binary frames after writing it. Compared by
+         * identity.
+         */
+        private volatile Frame binarySwitch;
 
         /**
          * Creates a WhiteboardThread with the given Client and Socket
          * 
          * @param socket
          * @param client
+         * @param executor
+         *            runs this connection's writer task
          */
-        private WhiteboardThread(final Socket socket, final Client client) {
-            super(new Runnable() {
-                /**
-                 * Handle a single client connection. Returns when client
-                 * disconnects.
-                 * 
-                 * @param socket
-                 *            socket where the client is connected
-                 * @throws IOException
-                 *             if connection has an error or terminates
-                 *             unexpectedly
-                 */
-                private void handleConnection(Socket socket) throws IOException {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    handleClientOperation("getUsername", client);
-                    handleClientOperation("listBoards", client);
-                    joinBoard(client, DEFAULT_BOARD);
+        private WhiteboardThread(final Socket socket, final Client client, final Executor executor) {
+            this.client = client;
+            this.socket = socket;
+            this.executor = executor;
+        }
 
-                    try {
-                        for (String line = in.readLine(); line != null; line = in.readLine()) {
-                            if (line.equals("exit")) {
-                                break;
-                            }
-                            handleRequest(line);
-                        }
-                    } finally {
-                        announceMessage("userQuit " + client.getUsername(), client.getCurrentBoardId());
-                        out.close();
-                        in.close();
-                    }
+        /**
+         * Handle a single client connection. Returns when client disconnects.
+         * 
+         * @throws IOException
+         *             if connection has an error or terminates unexpectedly
+         */
+        private void handleConnection() throws IOException {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeOutbound(out);
                 }
+            });
+            connectionOpened(this);
 
-                /**
-                 * Handler for client input, performing requested operations and
-                 * sending an output message.
-                 * 
-                 * @param input
-                 *            message from client
-                 */
-                private void handleRequest(String input) {
-                    if (isClientOperation(input)) {
-                        handleClientOperation(input, client);
+            try {
+                List<String> requests = new ArrayList<String>();
+                while (true) {
+                    if (binaryInput) {
+                        if (!WireProtocol.readFrame(in, requests)) {
+                            break;
+                        }
                     } else {
-                        announceMessage(input, client.getCurrentBoardId());
+                        String line = WireProtocol.readLine(in);
+                        if (line == null) {
+                            break;
+                        }
+                        requests.add(line);
                     }
-                }
-
-                /**
-                 * Disconnect the socket in this thread and removes from the
-                 * list of active threads.
-                 */
-                private void disconnectSocket(final Socket socket) {
-                    try {
-                        socket.close();
-                        removeThread(client);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    for (String request : requests) {
+                        if (request.equals("exit")) {
+                            return;
+                        }
+                        handleRequest(request, client);
                     }
+                    requests.clear();
                 }
+            } finally {
+                in.close();
+            }
+        }
 
-                @Override
-                public void run() {
-                    try {
-                        handleConnection(socket);
-                    } catch (IOException e) {
-                        e.printStackTrace(); // but don't terminate serve()
-                    } finally {
-                        disconnectSocket(socket);
+        /**
+         * Drain the outbound queue to out until the connection closes,
+         * flushing whenever the queue runs dry so that a burst of frames
+         * goes out in as few writes as possible.
+         * 
+         * @param out
+         *            buffered stream for the socket's output
+         */
+        private void writeOutbound(OutputStream out) {
+            boolean binary = false;
+            try {
+                while (true) {
+                    Frame frame = outbound.take();
+                    while (frame != null) {
+                        if (frame == CLOSE_SIGNAL) {
+                            return;
+                        }
+                        frame.writeTo(out, binary);
+                        frame.written();
+                        if (frame == binarySwitch) {
+                            binary = true;
+                        }
+                        frame = outbound.poll();
                     }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the socket is broken; the reader will notice too
+                disconnect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // already disconnecting
                 }
-            });
-
-            this.client = client;
-            this.socket = socket;
-            if (!boards.containsKey(client.getCurrentBoardId())) {
-                boards.put(client.getCurrentBoardId(), Collections.synchronizedList(new ArrayList<String>()));
             }
-
         }
 
         /**
-         * Send a message to the outputstream of this thread's client.
-         * Threadsafe because it is locked
-         * 
-         * @param string
-         *            the message
+         * Disconnect the socket in this thread.
          */
-        public synchronized void sendMessage(String string) {
+        private void disconnectSocket() {
             try {
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                out.println(string);
+                socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
+        @Override
+        public void run() {
+            try {
+                handleConnection();
+            } catch (IOException e) {
+                if (!disconnected) {
+                    e.printStackTrace(); // but don't terminate serve()
+                }
+            } finally {
+                disconnected = true;
+                connectionClosed(this);
+                outbound.replaceQueued(CLOSE_SIGNAL, 0);
+                disconnectSocket();
+            }
+        }
+
+        @Override
+        public Client getClient() {
+            return client;
+        }
+
         /**
-         * Send a list of messages to the outputstream of this thread's client
-         * as a single message separated by newlines. This ensures that all
-         * messages will be sent in order without interleaving.
-         * 
-         * Threadsafe because it is locked on the WhiteboardThread responsible
-         * for a single client.
+         * Queue a frame for this thread's client. Never blocks. Threadsafe
+         * because the outbound queue is.
          * 
-         * @param messages
-         *            the messages
+         * @param frame
+         *            the frame
          */
-        public synchronized void sendMessages(final List<String> messages) {
-            for (String s : messages) {
-                sendMessage(s);
+        @Override
+        public void sendFrame(Frame frame) {
+            if (disconnected) {
+                return;
+            }
+            outbound.add(frame, frame.size(), frame.isBoardTraffic());
+            if (slowConsumerPolicy.isExceeded(outbound)) {
+                slowConsumer(this, outbound);
+            }
+        }
+
+        @Override
+        public void sendMessage(String string) {
+            sendFrame(Frame.of(string));
+        }
+
+        @Override
+        public void resync(List<Frame> frames) {
+            outbound.discardReplaceable();
+            for (Frame frame : frames) {
+                outbound.add(frame, frame.size(), frame.isBoardTraffic());
             }
         }
+
+        @Override
+        public void useBinaryProtocol() {
+            binaryInput = true;
+            Frame reply = Frame.of(WireProtocol.USE_PROTOCOL_MESSAGE + " " + WireProtocol.BINARY_V1);
+            binarySwitch = reply;
+            sendFrame(reply);
+        }
+
+        @Override
+        public void disconnect() {
+            // closing the socket makes the reader, and therefore run(), finish
+            disconnected = true;
+            disconnectSocket();
+        }
     }
 
 }
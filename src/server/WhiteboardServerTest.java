@@ -41,38 +41,69 @@ public class WhiteboardServerTest {
         Thread.sleep(100);
 
         try {
-            Socket sock = TestUtil.connect();
-            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-
-            assertEquals("username User0", TestUtil.nextNonEmptyLine(in));
-            assertEquals("currentBoards ", TestUtil.nextNonEmptyLine(in));
-            assertEquals("newBoard default", TestUtil.nextNonEmptyLine(in));
-            assertEquals("userQuit User0", TestUtil.nextNonEmptyLine(in));
-            assertEquals("boardChanged  default", TestUtil.nextNonEmptyLine(in));
-            assertEquals("userJoined User0", TestUtil.nextNonEmptyLine(in));
-
-            out.println("getUsername");
-            assertEquals("username User0", TestUtil.nextNonEmptyLine(in));
-
-            out.println("listBoards");
-            assertEquals("currentBoards  default", TestUtil.nextNonEmptyLine(in));
-
-            out.println("setUsername TestUsername");
-            assertEquals("usernameChanged User0 TestUsername", TestUtil.nextNonEmptyLine(in));
-            assertEquals("userQuit User0", TestUtil.nextNonEmptyLine(in));
-            assertEquals("userJoined TestUsername", TestUtil.nextNonEmptyLine(in));
-
-            out.println("changeBoard testBoard"); // Debug is true.
-            assertEquals("newBoard testBoard", TestUtil.nextNonEmptyLine(in));
-            assertEquals("userQuit TestUsername", TestUtil.nextNonEmptyLine(in));
-            assertEquals("boardChanged default testBoard", TestUtil.nextNonEmptyLine(in));
-            assertEquals("userJoined TestUsername", TestUtil.nextNonEmptyLine(in));
-
-            out.println("exit");
-            sock.close();
+            checkFunctions(TestUtil.connect());
         } catch (SocketTimeoutException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Same as testFunctions, but against a server using the non-blocking NIO
+     * engine, which must behave identically.
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test(timeout = 10000)
+    public void testFunctionsNio() throws IOException, InterruptedException {
+        TestUtil.startServer(true, 4501, "nio");
+
+        // Avoid race where we try to connect to server too early
+        Thread.sleep(100);
+
+        try {
+            checkFunctions(TestUtil.connect(4501));
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs the message sequence described in testFunctions over sock.
+     */
+    private void checkFunctions(Socket sock) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+        PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
+
+        // Client ids are shared by every server in this JVM, so don't assume User0
+        String firstLine = TestUtil.nextNonEmptyLine(in);
+        assertTrue(firstLine.matches("username User[0-9]+"));
+        String user = firstLine.substring("username ".length());
+        assertEquals("currentBoards ", TestUtil.nextNonEmptyLine(in));
+        assertEquals("protocols text binary1", TestUtil.nextNonEmptyLine(in));
+        assertEquals("newBoard default", TestUtil.nextNonEmptyLine(in));
+        assertEquals("userQuit " + user, TestUtil.nextNonEmptyLine(in));
+        assertEquals("boardChanged  default", TestUtil.nextNonEmptyLine(in));
+        assertEquals("currentUsers " + user, TestUtil.nextNonEmptyLine(in));
+
+        out.println("getUsername");
+        assertEquals("username " + user, TestUtil.nextNonEmptyLine(in));
+
+        out.println("listBoards");
+        assertEquals("currentBoards  default", TestUtil.nextNonEmptyLine(in));
+
+        out.println("setUsername TestUsername");
+        assertEquals("usernameChanged " + user + " TestUsername", TestUtil.nextNonEmptyLine(in));
+        assertEquals("userQuit " + user, TestUtil.nextNonEmptyLine(in));
+        assertEquals("userJoined TestUsername", TestUtil.nextNonEmptyLine(in));
+
+        out.println("changeBoard testBoard"); // Debug is true.
+        assertEquals("newBoard testBoard", TestUtil.nextNonEmptyLine(in));
+        assertEquals("userQuit TestUsername", TestUtil.nextNonEmptyLine(in));
+        assertEquals("boardChanged default testBoard", TestUtil.nextNonEmptyLine(in));
+        assertEquals("currentUsers TestUsername", TestUtil.nextNonEmptyLine(in));
+
+        out.println("exit");
+        sock.close();
+    }
 }